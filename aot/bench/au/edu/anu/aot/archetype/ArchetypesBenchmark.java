@@ -0,0 +1,79 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.archetype;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.cnrs.iees.omugi.graph.Tree;
+import fr.cnrs.iees.omugi.graph.TreeNode;
+
+/**
+ * Benchmarks the construction of {@link Archetypes} and the check of the
+ * archetype for archetypes against itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArchetypesBenchmark {
+
+	private Archetypes archetypes;
+	private Tree<? extends TreeNode> archetypeArchetype;
+
+	@Setup
+	public void setup() {
+		archetypes = new Archetypes();
+		archetypeArchetype = BenchmarkTrees.importTree(BenchmarkTrees.archetypeArchetypeFile());
+	}
+
+	@Benchmark
+	public Archetypes construction() {
+		return new Archetypes();
+	}
+
+	@Benchmark
+	public CheckResult checkArchetype() {
+		return archetypes.checkArchetype(archetypeArchetype, CheckOptions.sequential());
+	}
+
+}
@@ -0,0 +1,181 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.archetype;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import fr.cnrs.iees.omugi.graph.Tree;
+import fr.cnrs.iees.omugi.graph.TreeNode;
+import fr.cnrs.iees.omugi.io.FileImporter;
+
+/**
+ * Generates the archetypes and data trees used by the benchmarks. Both are
+ * written as text files in a temporary directory and read back with the
+ * {@link FileImporter}, so that the benchmarks run on trees built exactly as
+ * client code builds them.
+ * <p>
+ * A generated archetype has a root class {@code root} and {@code nClasses} node
+ * classes {@code c0..}, each accepting any of the other classes as parent and
+ * carrying {@code nProperties} mandatory String properties {@code p0..}. A data
+ * tree of {@code nNodes} nodes complying with this archetype is a complete tree
+ * of fixed fanout where node {@code i} is of class {@code c(i mod nClasses)}.
+ */
+final class BenchmarkTrees {
+
+	/** The number of children of every inner node of a generated data tree */
+	static final int FANOUT = 8;
+
+	/** Archetype sizes, as numbers of node classes and of properties per class */
+	enum ArchetypeSize {
+		small(3, 1),
+		medium(10, 3),
+		large(30, 8);
+
+		final int nClasses;
+		final int nProperties;
+
+		ArchetypeSize(int nClasses, int nProperties) {
+			this.nClasses = nClasses;
+			this.nProperties = nProperties;
+		}
+	}
+
+	private BenchmarkTrees() {
+	}
+
+	/**
+	 * @return the archetype file shipped with this library, located from the
+	 *         working directory as in the unit tests
+	 */
+	static File archetypeArchetypeFile() {
+		return new File(System.getProperty("user.dir") 
+			+ File.separator + "src"
+			+ File.separator + BenchmarkTrees.class.getPackage().getName().replace('.', File.separatorChar)
+			+ File.separator + "ArchetypeArchetype.ugt");
+	}
+
+	/**
+	 * @param file a tree file
+	 * @return the tree read from this file
+	 */
+	@SuppressWarnings("unchecked")
+	static Tree<? extends TreeNode> importTree(File file) {
+		return (Tree<? extends TreeNode>) new FileImporter(file).getGraph();
+	}
+
+	/**
+	 * @param size the archetype size
+	 * @return a freshly imported archetype of this size
+	 */
+	static Tree<? extends TreeNode> archetype(ArchetypeSize size) {
+		return importTree(write("archetype-" + size, out -> writeArchetype(out, size)));
+	}
+
+	/**
+	 * @param size   the archetype size the tree must comply with
+	 * @param nNodes the number of nodes of the tree
+	 * @return a freshly imported data tree
+	 */
+	static Tree<? extends TreeNode> dataTree(ArchetypeSize size, int nNodes) {
+		return importTree(write("tree-" + size + "-" + nNodes, out -> writeDataTree(out, size, nNodes)));
+	}
+
+	private interface Content {
+		void writeTo(Writer out) throws IOException;
+	}
+
+	private static File write(String name, Content content) {
+		try {
+			Path file = Files.createTempFile("aot-" + name + "-", ".ugt");
+			file.toFile().deleteOnExit();
+			try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+				content.writeTo(out);
+			}
+			return file.toFile();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void writeArchetype(Writer out, ArchetypeSize size) throws IOException {
+		out.write("tree\n");
+		out.write("\thasNode = String(\"au.edu.anu.aot.archetype.NodeSpec\")\n");
+		out.write("\thasProperty = String(\"au.edu.anu.aot.archetype.PropertySpec\")\n");
+		out.write("\tarchetype = String(\"au.edu.anu.aot.archetype.ArchetypeRootSpec\")\n");
+		out.write("archetype Benchmark" + size + "\n");
+		out.write("\texclusive = Boolean(true)\n");
+		writeNodeSpec(out, "root", "\"\"", 1, "1..1", size.nProperties);
+		StringBuilder parents = new StringBuilder("\"root:\"");
+		for (int c = 0; c < size.nClasses; c++)
+			parents.append(",\"c").append(c).append(":\"");
+		for (int c = 0; c < size.nClasses; c++)
+			writeNodeSpec(out, "c" + c, parents.toString(), size.nClasses + 1, "0..*", size.nProperties);
+	}
+
+	private static void writeNodeSpec(Writer out, String nodeClass, String parents, int nParents,
+			String multiplicity, int nProperties) throws IOException {
+		out.write("\thasNode " + nodeClass + "Spec\n");
+		out.write("\t\tisOfClass = String(\"" + nodeClass + "\")\n");
+		out.write("\t\thasParent = StringTable(([" + nParents + "]" + parents + "))\n");
+		out.write("\t\tmultiplicity = IntegerRange(\"" + multiplicity + "\")\n");
+		for (int p = 0; p < nProperties; p++) {
+			out.write("\t\thasProperty " + nodeClass + "p" + p + "Spec\n");
+			out.write("\t\t\thasName = String(\"p" + p + "\")\n");
+			out.write("\t\t\ttype = String(\"String\")\n");
+			out.write("\t\t\tmultiplicity = IntegerRange(\"1..1\")\n");
+		}
+	}
+
+	private static void writeDataTree(Writer out, ArchetypeSize size, int nNodes) throws IOException {
+		out.write("tree\n");
+		writeNode(out, size, nNodes, 0, 0);
+	}
+
+	// node i has children FANOUT*i+1..FANOUT*i+FANOUT, written in pre-order
+	private static void writeNode(Writer out, ArchetypeSize size, int nNodes, int i, int depth)
+			throws IOException {
+		String indent = "\t".repeat(depth);
+		String nodeClass = i == 0 ? "root" : "c" + (i % size.nClasses);
+		out.write(indent + nodeClass + " n" + i + "\n");
+		for (int p = 0; p < size.nProperties; p++)
+			out.write(indent + "\tp" + p + " = String(\"v" + i + "\")\n");
+		long first = (long) FANOUT * i + 1;
+		for (long child = first; child < first + FANOUT && child < nNodes; child++)
+			writeNode(out, size, nNodes, (int) child, depth + 1);
+	}
+
+}
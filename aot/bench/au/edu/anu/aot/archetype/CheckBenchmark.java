@@ -0,0 +1,119 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.archetype;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.edu.anu.aot.archetype.BenchmarkTrees.ArchetypeSize;
+import fr.cnrs.iees.omugi.graph.Tree;
+import fr.cnrs.iees.omugi.graph.TreeNode;
+
+/**
+ * Benchmarks {@link Archetypes#check(fr.cnrs.iees.omugi.graph.NodeSet, CompiledArchetype, CheckOptions)}
+ * on generated trees of 10<sup>3</sup> to 10<sup>6</sup> nodes against small,
+ * medium and large archetypes (see {@link BenchmarkTrees}). The trees comply
+ * with their archetype, so every node goes through all the checks. The
+ * {@code recheck} benchmark measures a check in subtree reuse mode after a
+ * single edit - a leaf moving between two parents.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class CheckBenchmark {
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int nNodes;
+
+	@Param({ "small", "medium", "large" })
+	public String archetypeSize;
+
+	@Param({ "sequential", "parallel" })
+	public String execution;
+
+	private Archetypes archetypes;
+	private CompiledArchetype archetype;
+	private Tree<? extends TreeNode> tree;
+	private CheckOptions options;
+	private CheckOptions reuseOptions;
+	private CheckResult previous;
+	private TreeNode leaf;
+	private TreeNode[] leafParents;
+	private int nMoves = 0;
+
+	@Setup
+	public void setup() {
+		ArchetypeSize size = ArchetypeSize.valueOf(archetypeSize);
+		archetypes = new Archetypes();
+		archetype = archetypes.compile((ArchetypeRootSpec) BenchmarkTrees.archetype(size).root());
+		tree = BenchmarkTrees.dataTree(size, nNodes);
+		options = execution.equals("parallel") ? CheckOptions.parallel() : CheckOptions.sequential();
+		CheckResult result = archetypes.check(tree, archetype, options);
+		if (!result.isValid())
+			throw new IllegalStateException("Generated tree does not comply with archetype '"
+				+ archetype.archetypeId() + "': " + result);
+		reuseOptions = options.withSubtreeReuse(true);
+		previous = archetypes.check(tree, archetype, reuseOptions);
+		for (TreeNode node : tree.nodes())
+			if (node.id().equals("n" + (nNodes - 1)))
+				leaf = node;
+		leafParents = new TreeNode[] { leaf.getParent(), tree.root() };
+	}
+
+	@Benchmark
+	public CheckResult check() {
+		return archetypes.check(tree, archetype, options);
+	}
+
+	@Benchmark
+	public CheckResult recheck() {
+		leaf.disconnectFrom(leafParents[nMoves % 2]);
+		nMoves++;
+		leaf.connectParent(leafParents[nMoves % 2]);
+		previous = archetypes.check(tree, archetype, reuseOptions, previous, List.of(leaf));
+		return previous;
+	}
+
+}
@@ -346,6 +346,28 @@ public class TextTranslations {
 	 * @param element the element to which the property belongs
 	 * @return action and constraint messages in a {@code String} array
 	 */
+	/**
+	 * Error message: the parameters of a constraint were rejected by its factory.
+	 * @param constraint the class name of the constraint
+	 * @param spec the constraint specification
+	 * @param cause why the parameters were rejected
+	 * @return action and constraint messages in a {@code String} array
+	 */
+	public static String[] getQUERY_PARAMETERS_INVALID(String constraint, String spec, String cause) {
+		String am;
+		String cm;
+		if (French()) {
+			am = "Corriger les paramètres de " +oq+ spec +cq+ ".";
+			cm = "Paramètres refusés par la contrainte " +oq+ constraint +cq+ " : " + cause;
+		} 
+		else {
+			am = "Correct the parameters of " +oq+ spec +cq+ ".";
+			cm = "Parameters rejected by constraint " +oq+ constraint +cq+ ": " + cause;
+		}
+		String[] result = { am, cm };
+		return result;
+	}
+
 	// QUESTION: Isnt that the same method as getQUERY_PROPERTY_CLASS_UNKNOWN ???
 	public static String[] getPROPERTY_UNKNOWN(String propertyKey, String element) {
 		String am;
@@ -390,4 +412,66 @@ public class TextTranslations {
 		return result;
 	}
 
+	/**
+	 * Error message: messages were merged because listeners could not keep up.
+	 * @param nErrors the number of merged error messages
+	 * @return action and constraint messages in a {@code String} array
+	 */
+	public static String[] getERRORS_COALESCED(int nErrors) {
+		String am;
+		String cm;
+		if (French()) {
+			am = "Corriger les erreurs affichées et vérifier à nouveau.";
+			cm = nErrors + " autres erreurs n'ont pas été affichées.";
+		} 
+		else {
+			am = "Fix the errors shown and check again.";
+			cm = nErrors + " more errors were not shown.";
+		}
+		String[] result = { am, cm };
+		return result;
+	}
+
+	/**
+	 * Error message: a constraint failed with an exception while checking an item.
+	 * @param constraint the class name of the constraint
+	 * @param cause the message of the exception
+	 * @return action and constraint messages in a {@code String} array
+	 */
+	public static String[] getCONSTRAINT_FAILED(String constraint, String cause) {
+		String am;
+		String cm;
+		if (French()) {
+			am = "Corriger la contrainte " +oq+ constraint +cq+ ", qui a échoué : " + cause;
+			cm = "La contrainte " +oq+ constraint +cq+ " n'a pas pu être vérifiée.";
+		} 
+		else {
+			am = "Fix constraint " +oq+ constraint +cq+ ", which failed: " + cause;
+			cm = "Constraint " +oq+ constraint +cq+ " could not be checked.";
+		}
+		String[] result = { am, cm };
+		return result;
+	}
+
+	/**
+	 * Error message: a sub-archetype ends up checking itself on the same node.
+	 * @param subArchetype the class name of the sub-archetype query
+	 * @param node the node checked
+	 * @return action and constraint messages in a {@code String} array
+	 */
+	public static String[] getSUBARCHETYPE_CYCLE(String subArchetype, String node) {
+		String am;
+		String cm;
+		if (French()) {
+			am = "Supprimer le cycle entre sous-archétypes passant par " +oq+ subArchetype +cq+ ".";
+			cm = "Le sous-archétype " +oq+ subArchetype +cq+ " se vérifie lui-même sur le nœud " +oq+ node +cq+ ".";
+		} 
+		else {
+			am = "Remove the sub-archetype cycle through " +oq+ subArchetype +cq+ ".";
+			cm = "Sub-archetype " +oq+ subArchetype +cq+ " checks itself on node " +oq+ node +cq+ ".";
+		}
+		String[] result = { am, cm };
+		return result;
+	}
+
 }
@@ -0,0 +1,326 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.archetype;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.cnrs.iees.omugi.graph.Direction;
+import fr.cnrs.iees.omugi.graph.Edge;
+import fr.cnrs.iees.omugi.graph.Node;
+import fr.cnrs.iees.omugi.graph.ReadOnlyDataHolder;
+import fr.cnrs.iees.omugi.graph.Tree;
+import fr.cnrs.iees.omugi.graph.TreeNode;
+import fr.cnrs.iees.omugi.properties.ReadOnlyPropertyList;
+
+/**
+ * <p>
+ * A cache of archetypes, for applications which receive the same archetypes
+ * over and over again. Archetypes are identified by a hash of their content
+ * (node classes and ids, properties and edges, in tree order), so that two
+ * different trees with the same content share the same entry. For every
+ * archetype, the registry keeps the result of its check against the
+ * <em>archetype for archetypes</em> and, if valid, its compiled form: after the
+ * first time, registering an archetype only costs the computation of its hash.
+ * </p>
+ * <p>
+ * The registry holds at most a given total weight of archetypes, the weight of
+ * an archetype being its number of nodes. When full, the least recently used
+ * archetypes are evicted first. Instances are thread-safe.
+ * </p>
+ * <p>
+ * Notice that the compiled form of an archetype refers to the tree registered
+ * first: error messages of later checks will point to specifications of this
+ * tree, which has the same content.
+ * </p>
+ */
+public final class ArchetypeRegistry {
+
+	/**
+	 * What the registry knows about an archetype.
+	 */
+	public static final class Entry {
+		private final String contentHash;
+		private final CheckResult validation;
+		private final CompiledArchetype compiled;
+		private final long weight;
+
+		private Entry(String contentHash, CheckResult validation, CompiledArchetype compiled, long weight) {
+			super();
+			this.contentHash = contentHash;
+			this.validation = validation;
+			this.compiled = compiled;
+			this.weight = weight;
+		}
+
+		/**
+		 * @return the content hash of the archetype
+		 */
+		public String contentHash() {
+			return contentHash;
+		}
+
+		/**
+		 * @return the result of the check of the archetype against the
+		 *         <em>archetype for archetypes</em>
+		 */
+		public CheckResult validation() {
+			return validation;
+		}
+
+		/**
+		 * @return {@code true} if the archetype is a valid archetype
+		 */
+		public boolean isValid() {
+			return validation.isValid();
+		}
+
+		/**
+		 * @return the compiled archetype, null if the archetype is not valid
+		 */
+		public CompiledArchetype compiled() {
+			return compiled;
+		}
+
+		@Override
+		public String toString() {
+			return "registered " + validation.archetypeId() + " [" + contentHash + "]";
+		}
+	}
+
+	private final Archetypes checker;
+
+	private final long maxWeight;
+
+	/** entries by content hash, least recently used first */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long weight = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param checker   the checker used to check and compile new archetypes
+	 * @param maxWeight the maximal total number of archetype nodes kept
+	 */
+	public ArchetypeRegistry(Archetypes checker, long maxWeight) {
+		super();
+		if (maxWeight < 1)
+			throw new IllegalArgumentException("Registry maximal weight must be at least 1");
+		this.checker = checker;
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Returns the entry of an archetype. If no archetype with the same content is
+	 * known, the archetype is checked, compiled if valid, and registered.
+	 *
+	 * @param archetype an archetype tree, with an {@link ArchetypeRootSpec} root
+	 * @return the registry entry of the archetype
+	 */
+	public Entry register(Tree<? extends TreeNode> archetype) {
+		if (!(archetype.root() instanceof ArchetypeRootSpec))
+			throw new IllegalArgumentException("Archetype does not have " + ArchetypeRootSpec.class.getSimpleName()
+					+ " as its root! " + archetype.root());
+		String hash = contentHash(archetype);
+		synchronized (this) {
+			Entry entry = entries.get(hash);
+			if (entry != null) {
+				hits.incrementAndGet();
+				return entry;
+			}
+		}
+		misses.incrementAndGet();
+		// checked outside the lock: a concurrent registration of the same archetype
+		// may do the same work, but only one entry is kept
+		CheckResult validation = checker.checkArchetype(archetype, CheckOptions.sequential());
+		CompiledArchetype compiled = validation.isValid() ?
+			checker.compile((ArchetypeRootSpec) archetype.root()) : null;
+		Entry entry = new Entry(hash, validation, compiled, Math.max(1, archetype.nNodes()));
+		synchronized (this) {
+			Entry previous = entries.putIfAbsent(hash, entry);
+			if (previous != null)
+				return previous;
+			weight += entry.weight;
+			evict();
+		}
+		return entry;
+	}
+
+	// removes the least recently used entries until the weight fits, but always
+	// keeps the last one
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while ((weight > maxWeight) && (entries.size() > 1)) {
+			Entry eldest = it.next();
+			it.remove();
+			weight -= eldest.weight;
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the number of registrations of an already known archetype
+	 */
+	public long hits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of registrations of a new archetype
+	 */
+	public long misses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of archetypes removed to make room for new ones
+	 */
+	public long evictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the number of archetypes currently registered
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the total weight of the archetypes currently registered
+	 */
+	public synchronized long weight() {
+		return weight;
+	}
+
+	/**
+	 * Forgets all archetypes. Counters are not reset.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "archetype registry [" + entries.size() + " archetypes, " + hits.get() + " hits, " + misses.get()
+			+ " misses]";
+	}
+
+	/**
+	 * Computes the content hash of an archetype: a SHA-256 digest of the class,
+	 * id, properties, out-edges and number of children of every node, in tree
+	 * order. Property values are hashed through their text representation.
+	 *
+	 * @param archetype an archetype tree
+	 * @return the content hash, as an hexadecimal string
+	 */
+	public static String contentHash(Tree<? extends TreeNode> archetype) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform must implement SHA-256
+			throw new IllegalStateException(e);
+		}
+		Deque<TreeNode> toHash = new ArrayDeque<>();
+		for (TreeNode root : archetype.roots())
+			toHash.addLast(root);
+		while (!toHash.isEmpty()) {
+			TreeNode node = toHash.pollFirst();
+			update(digest, node.classId());
+			update(digest, node.id());
+			if (node instanceof ReadOnlyDataHolder) {
+				ReadOnlyPropertyList props = ((ReadOnlyDataHolder) node).properties();
+				// property order does not change the archetype
+				List<String> keys = new ArrayList<>(props.getKeysAsSet());
+				Collections.sort(keys);
+				updateCount(digest, keys.size());
+				for (String key : keys) {
+					update(digest, key);
+					Object value = props.getPropertyValue(key);
+					update(digest, (value == null) ? null : value.getClass().getName());
+					update(digest, (value == null) ? null : value.toString());
+				}
+			}
+			else
+				updateCount(digest, -1);
+			if (node instanceof Node) {
+				List<String> edges = new ArrayList<>();
+				for (Edge edge : ((Node) node).edges(Direction.OUT))
+					edges.add(edge.classId() + ':' + edge.id() + "->" + edge.endNode().classId() + ':'
+						+ edge.endNode().id());
+				Collections.sort(edges);
+				updateCount(digest, edges.size());
+				for (String edge : edges)
+					update(digest, edge);
+			}
+			// children come before the next siblings, in their order
+			List<TreeNode> children = new ArrayList<>();
+			for (TreeNode child : node.getChildren())
+				children.add(child);
+			updateCount(digest, children.size());
+			for (int i = children.size() - 1; i >= 0; i--)
+				toHash.addFirst(children.get(i));
+		}
+		byte[] bytes = digest.digest();
+		StringBuilder result = new StringBuilder(2 * bytes.length);
+		for (byte b : bytes)
+			result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return result.toString();
+	}
+
+	// length-prefixed, so that ("ab","c") and ("a","bc") differ
+	private static void update(MessageDigest digest, String s) {
+		if (s == null)
+			updateCount(digest, -1);
+		else {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			updateCount(digest, bytes.length);
+			digest.update(bytes);
+		}
+	}
+
+	private static void updateCount(MessageDigest digest, int n) {
+		digest.update((byte) (n >>> 24));
+		digest.update((byte) (n >>> 16));
+		digest.update((byte) (n >>> 8));
+		digest.update((byte) n);
+	}
+
+}
@@ -29,14 +29,18 @@
  **************************************************************************/
 package au.edu.anu.aot.archetype;
 
-import java.lang.reflect.Constructor;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.*;
 
 import au.edu.anu.qgraph.queries.Queryable;
+import au.edu.anu.aot.TextTranslations;
 import au.edu.anu.aot.errorMessaging.ErrorMessagable;
+import au.edu.anu.aot.archetype.CompiledArchetype.*;
+import au.edu.anu.aot.constraints.BatchConstraint;
 import au.edu.anu.aot.errorMessaging.impl.*;
-import fr.cnrs.iees.omugi.collections.tables.StringTable;
 import fr.cnrs.iees.omugi.graph.property.Property;
 
 import au.edu.anu.omhtk.util.IntegerRange;
@@ -46,7 +50,6 @@ import fr.cnrs.iees.omugi.graph.io.GraphImporter;
 import fr.cnrs.iees.omugi.properties.*;
 import fr.cnrs.iees.omhtk.utils.*;
 import fr.cnrs.iees.omugi.io.parsing.ValidPropertyTypes;
-import fr.cnrs.iees.omugi.io.parsing.impl.NodeReference;
 import static au.edu.anu.qgraph.queries.base.SequenceQuery.*;
 import static au.edu.anu.qgraph.queries.CoreQueries.*;
 
@@ -67,9 +70,22 @@ import static au.edu.anu.qgraph.queries.CoreQueries.*;
  * i.e. complies with the requirements needed to call a graph an archetype.
  * </p>
  * <p>
- * Afer a call to any of the {@code check(...)} methods, 
- * {@link Archetypes#errorList() errorList()} may be called to
- * retrieve all checking errors.
+ * The {@code check(...)} methods taking {@link CheckOptions}, and those taking
+ * a {@link CompiledArchetype}, return a {@link CheckResult} holding the errors
+ * found. Instances of this class hold no state specific to a check, so that a
+ * single instance can be shared by many threads. The older methods, which
+ * return nothing, are kept for backward compatibility: after a call to any of
+ * the {@code check(...)} methods, {@link Archetypes#errorList() errorList()}
+ * may be called to retrieve all checking errors of the last check made by the
+ * calling thread.
+ * </p>
+ * <p>
+ * When the same archetype is used for many checks, it should be compiled once
+ * with {@link Archetypes#compile(ArchetypeRootSpec) compile(...)} and the
+ * resulting {@link CompiledArchetype} passed to
+ * {@link Archetypes#check(NodeSet, CompiledArchetype) check(...)}. Large trees
+ * can be checked in parallel by passing {@link CheckOptions#parallel()} to
+ * {@link Archetypes#check(NodeSet, CompiledArchetype, CheckOptions) check(...)}.
  * </p>
  * <p>
  * NB: an archetype is a {@link Tree}, but a configuration/specification
@@ -136,136 +152,311 @@ public class Archetypes {
 	 * matches the {@code type} keyword in the <em>archetype for archetypes</em> */
 	public final static String TYPE = "type";
 
-	/** The universal archetype - the archetype for archetypes */
-	private Tree<? extends TreeNode> archetypeArchetype = null;
+	/** The universal archetype, compiled */
+	private final CompiledArchetype compiledArchetypeArchetype;
+
+	/** The property names of a ConstraintSpec which are not query parameters */
+	private final Set<String> constraintSpecKeys;
 
 	private static Logger log = Logging.getLogger(Archetypes.class);
 	static {
 		log.setLevel(Level.OFF);
 	}
 
-	private List<ErrorMessagable> checkFailList = new LinkedList<ErrorMessagable>();
+	/** The result of the last check made by every thread, for errorList() */
+	private final ThreadLocal<CheckResult> lastResult = new ThreadLocal<>();
+
+	/** The sub-archetypes being run by every thread, to detect cycles */
+	private static final ThreadLocal<RunningSubArchetypes> runningSubArchetypes = ThreadLocal
+		.withInitial(RunningSubArchetypes::new);
+
+	/** Scratch table of child counts by class rank, reused by every node a thread checks */
+	private static final ThreadLocal<int[]> childCountsByClass = ThreadLocal.withInitial(() -> new int[0]);
 
 	/**
-	 * Parameterless constructor to create the archetype graph from file.
+	 * The archetype for archetypes, loaded once per JVM, when the first
+	 * {@link Archetypes} instance is built (the JVM guarantees this class is
+	 * initialised only once, even with concurrent callers). It is never edited
+	 * afterwards, so all instances share it. If the jar contains an up to date
+	 * precompiled image of it, the text file is only read to report errors.
+	 */
+	private static final class MetaArchetype {
+		static final String SOURCE = "ArchetypeArchetype.ugt";
+		static final Set<String> constraintSpecKeys;
+		static final CompiledArchetype compiled;
+		private static Tree<? extends TreeNode> tree;
+		private static boolean treeRead = false;
+		static {
+			CompiledArchetype image = PrecompiledArchetypes.readResource(Archetypes.class, SOURCE,
+				MetaArchetype::root);
+			if (image != null) {
+				constraintSpecKeys = image.constraintSpecKeys();
+				compiled = image;
+			}
+			else if (tree() != null) {
+				constraintSpecKeys = Collections.unmodifiableSet(getArchetypePropertyList(tree(), "ConstraintSpec"));
+				compiled = new CompiledArchetype(root(), constraintSpecKeys);
+			}
+			else {
+				constraintSpecKeys = Set.of(CLASS_NAME);
+				compiled = null;
+			}
+		}
+
+		// the archetype tree, read from file when first needed
+		@SuppressWarnings("unchecked")
+		static synchronized Tree<? extends TreeNode> tree() {
+			if (!treeRead) {
+				tree = (Tree<? extends TreeNode>) GraphImporter.importGraph(SOURCE, Archetypes.class);
+				treeRead = true;
+			}
+			return tree;
+		}
+
+		private static ArchetypeRootSpec root() {
+			return (tree() == null) ? null : (ArchetypeRootSpec) tree().root();
+		}
+	}
+
+	/**
+	 * Parameterless constructor. The archetype graph is read from file only once,
+	 * by the first instance, and shared with all the others.
 	 */
-	@SuppressWarnings("unchecked")
 	public Archetypes() {
 		super();
-		archetypeArchetype = (Tree<? extends TreeNode>) GraphImporter.importGraph("ArchetypeArchetype.ugt",
-				this.getClass());
+		constraintSpecKeys = MetaArchetype.constraintSpecKeys;
+		compiledArchetypeArchetype = MetaArchetype.compiled;
+	}
+
+	/**
+	 * Compiles an archetype into an immutable checking plan. Checking many graphs
+	 * against the same archetype is much faster with the compiled form, as the
+	 * archetype tree is read only once.
+	 *
+	 * @param archetype the archetype root node
+	 * @return the compiled archetype, to pass to
+	 *         {@link #check(NodeSet, CompiledArchetype) check(...)}
+	 */
+	public CompiledArchetype compile(ArchetypeRootSpec archetype) {
+		return new CompiledArchetype(archetype, constraintSpecKeys);
 	}
 
 	/**
 	 * checks that an archetype is an archetype (= check it against
-	 * the <em>archetype for archetypes</em>)
+	 * the <em>archetype for archetypes</em>). The errors are available from
+	 * {@link #errorList()}.
 	 *
 	 * @param graphToCheck the archetype to check
 	 */
 	public void checkArchetype(Tree<? extends TreeNode> graphToCheck) {
-		if (archetypeArchetype != null)
-			check(graphToCheck, archetypeArchetype);
-		else
+		checkArchetype(graphToCheck, CheckOptions.sequential());
+	}
+
+	/**
+	 * checks that an archetype is an archetype (= check it against
+	 * the <em>archetype for archetypes</em>), using the options passed as arguments
+	 *
+	 * @param graphToCheck the archetype to check
+	 * @param options      the checking options
+	 * @return the check result
+	 */
+	public CheckResult checkArchetype(Tree<? extends TreeNode> graphToCheck, CheckOptions options) {
+		if (compiledArchetypeArchetype != null)
+			return check(graphToCheck, compiledArchetypeArchetype, options);
+		else {
 			log.warning("Archetype for archetypes not found - no check performed");
+			CheckResult result = new CheckResult(null, Collections.emptyList(), 0, true, 0, 0, 0L);
+			lastResult.set(result);
+			return result;
+		}
 	}
 
 	/**
 	 * checks that an archetype is an archetype and returns true if it complies.
+	 * The errors are available from {@link #errorList()}.
 	 *
 	 * @param graphToCheck the tree to check
 	 * @return true if graphToCheck is a valid archetype
 	 */
 	public boolean isArchetype(Tree<? extends TreeNode> graphToCheck) {
-		checkArchetype(graphToCheck);
-		if (checkFailList.isEmpty())
-			return true;
-		else
-			return false;
+		return checkArchetype(graphToCheck, CheckOptions.sequential()).isValid();
+	}
+
+	/**
+	 * checks that an archetype is an archetype and returns true if it complies,
+	 * as fast as possible: the check stops at the first error and builds no error
+	 * message, so that {@link #errorList()} is empty afterwards. Use
+	 * {@link #isArchetype(Tree) isArchetype(...)} to know what is wrong.
+	 *
+	 * @param graphToCheck the tree to check
+	 * @return true if graphToCheck is a valid archetype
+	 */
+	public boolean isValidArchetype(Tree<? extends TreeNode> graphToCheck) {
+		return checkArchetype(graphToCheck, CheckOptions.validityOnly()).isValid();
 	}
 
 	/**
 	 * checks that <strong>graphToCheck</strong> complies with
-	 * <strong>archetype</strong>.
+	 * <strong>archetype</strong>. The errors are available from
+	 * {@link #errorList()}.
 	 *
 	 * @param graphToCheck the graph to check (usually a Tree or a TreeGraph)
 	 * @param archetype    the archetype tree to check against
 	 */
 	public void check(NodeSet<?> graphToCheck, Tree<? extends TreeNode> archetype) {
+		check(graphToCheck, archetype, CheckOptions.sequential());
+	}
+
+	/**
+	 * checks that <strong>graphToCheck</strong> complies with
+	 * <strong>archetype</strong>, using the options passed as arguments.
+	 *
+	 * @param graphToCheck the graph to check (usually a Tree or a TreeGraph)
+	 * @param archetype    the archetype tree to check against
+	 * @param options      the checking options
+	 * @return the check result
+	 */
+	public CheckResult check(NodeSet<?> graphToCheck, Tree<? extends TreeNode> archetype, CheckOptions options) {
 		if (!(archetype.root() instanceof ArchetypeRootSpec))
 			throw new IllegalArgumentException("Archetype does not have " + ArchetypeRootSpec.class.getSimpleName()
 					+ " as its root! " + archetype.root());
+		CheckResult result = null;
 		for (TreeNode arch : archetype.nodes())
 			if (arch instanceof ArchetypeRootSpec)
-				check(graphToCheck, (ArchetypeRootSpec) arch);
+				result = check(graphToCheck, (ArchetypeRootSpec) arch, options);
+		return result;
 	}
 
-	// returns true if the parent label (=class name) of 'child' matches one of
-	// the names passed in 'parentlist' OR if parentList=null and child is the root
-	// node
-	private boolean matchesParent(TreeNode child, StringTable parentList) {
+	/**
+	 * @return the node specs of the archetype a node must comply with, in
+	 *         archetype order
+	 */
+	List<NodePlan> matchingPlans(TreeNode targetNode, CompiledArchetype archetype) {
+		List<NodePlan> result = new ArrayList<>();
+		for (NodePlan hasNode : archetype.nodePlansForClass(targetNode.classId()))
+			if (matchesParent(targetNode, hasNode))
+				result.add(hasNode);
+		for (NodePlan hasNode : archetype.nodePlansForClassAndId(targetNode.classId(), targetNode.id()))
+			if (matchesParent(targetNode, hasNode))
+				result.add(hasNode);
+		return result;
+	}
+
+	private boolean matchesParent(TreeNode child, NodePlan hasNode) {
 		// root node - has no parent
-		if (child.getParent() == null) {
-			if (parentList == null)
-				return true;
-			if (parentList.size() == 0)
-				return true;
-			for (int i = 0; i < parentList.size(); i++)
-				if ((parentList.getWithFlatIndex(i) == null) || (parentList.getWithFlatIndex(i).length() == 0))
-					return true;
-			return false;
-		}
+		if (child.getParent() == null)
+			return hasNode.rootAllowed;
 		// parent exists, must match at least one id of parentList
-		else {
-			for (int i = 0; i < parentList.size(); i++)
-				if (NodeReference.matchesRef(child.getParent(), parentList.getWithFlatIndex(i)))
-					return true;
-		}
-		return false;
+		else
+			return hasNode.parentMatcher.matches(child.getParent());
 	}
 
-	private boolean matchesClass(TreeNode node, String requiredClass) {
-		return node.classId().equals(requiredClass);
+	/**
+	 * checks that <strong>graphToCheck</strong> complies with
+	 * <strong>archetype</strong>. Here, <strong>archetype</strong> is the root node
+	 * of an archetype tree. The errors are available from {@link #errorList()}.
+	 *
+	 * @param graphToCheck the graph to check (usually a Tree or a TreeGraph)
+	 * @param archetype    the archetype root node to check against
+	 */
+	public void check(NodeSet<?> graphToCheck, ArchetypeRootSpec archetype) {
+		check(graphToCheck, archetype, CheckOptions.sequential());
 	}
 
-	private boolean matchesId(TreeNode node, String requiredId) {
-		if (requiredId != null)
-			return node.id().equals(requiredId);
-		else
-			return true;
+	/**
+	 * checks that <strong>graphToCheck</strong> complies with
+	 * <strong>archetype</strong>, using the options passed as arguments. Here,
+	 * <strong>archetype</strong> is the root node of an archetype tree.
+	 *
+	 * @param graphToCheck the graph to check (usually a Tree or a TreeGraph)
+	 * @param archetype    the archetype root node to check against
+	 * @param options      the checking options
+	 * @return the check result
+	 */
+	public CheckResult check(NodeSet<?> graphToCheck, ArchetypeRootSpec archetype, CheckOptions options) {
+		return check(graphToCheck, compile(archetype), options);
 	}
 
-	// this is probably making the code very slow... if the archetype has n nodes,
-	// this will cause n² loops on the archetype.
-	private List<NodeSpec> getChildrenSpecs(NodeSpec parentReq, ArchetypeRootSpec archetype) {
-		List<NodeSpec> result = new ArrayList<>();
-		String parentClassName = (String) parentReq.properties().getPropertyValue(IS_OF_CLASS);
-		for (TreeNode tn : archetype.getChildren())
-			if (tn instanceof NodeSpec) {
-				NodeSpec child = (NodeSpec) tn;
-				StringTable parentList = (StringTable) child.properties().getPropertyValue(HAS_PARENT);
-				for (int i = 0; i < parentList.size(); i++) {
-					String s = parentList.getWithFlatIndex(i);
-					if (s!=null)
-						// NB this is not very good coding - the ":" may appear as dangerous flaw later
-						if (s.equals(parentClassName + ":"))
-							result.add(child);
-				}
-			}
-		return result;
+	/**
+	 * checks that <strong>graphToCheck</strong> complies with
+	 * <strong>archetype</strong>. Here, <strong>archetype</strong> is an archetype
+	 * previously compiled with {@link #compile(ArchetypeRootSpec) compile(...)}.
+	 *
+	 * @param graphToCheck the graph to check (usually a Tree or a TreeGraph)
+	 * @param archetype    the compiled archetype to check against
+	 * @return the check result
+	 */
+	public CheckResult check(NodeSet<?> graphToCheck, CompiledArchetype archetype) {
+		return check(graphToCheck, archetype, CheckOptions.sequential());
 	}
 
 	/**
 	 * checks that <strong>graphToCheck</strong> complies with
-	 * <strong>archetype</strong>. Here, <strong>archetype</strong> is the root node
-	 * of an archetype tree.
+	 * <strong>archetype</strong>, using the options passed as arguments (e.g. to
+	 * run the check in parallel on large trees, or to stop at the first error).
 	 *
 	 * @param graphToCheck the graph to check (usually a Tree or a TreeGraph)
-	 * @param archetype    the archetype root node to check against
+	 * @param archetype    the compiled archetype to check against
+	 * @param options      the checking options
+	 * @return the check result
+	 */
+	public CheckResult check(NodeSet<?> graphToCheck, CompiledArchetype archetype, CheckOptions options) {
+		return check(graphToCheck, archetype, options, null);
+	}
+
+	/**
+	 * checks that <strong>graphToCheck</strong> complies with
+	 * <strong>archetype</strong> again, after <strong>previous</strong>. If both
+	 * checks are made in subtree reuse mode (cf.
+	 * {@link CheckOptions#withSubtreeReuse(boolean)}) against the same compiled
+	 * archetype, the results of the nodes which did not change since are taken
+	 * from <strong>previous</strong>. Since the nodes which changed are not known,
+	 * all the nodes are hashed again.
+	 *
+	 * @param graphToCheck the graph to check (usually a Tree or a TreeGraph)
+	 * @param archetype    the compiled archetype to check against
+	 * @param options      the checking options
+	 * @param previous     the result of the previous check, null if none
+	 * @return the check result
+	 */
+	public CheckResult check(NodeSet<?> graphToCheck, CompiledArchetype archetype, CheckOptions options,
+			CheckResult previous) {
+		return check(graphToCheck, archetype, options, previous, null);
+	}
+
+	/**
+	 * checks that <strong>graphToCheck</strong> complies with
+	 * <strong>archetype</strong> again, after <strong>previous</strong>, knowing
+	 * which nodes changed since. In subtree reuse mode, only these nodes are
+	 * hashed again, and the results of the others are taken from
+	 * <strong>previous</strong> as long as their children and ancestors did not
+	 * change, so that the cost of the check mostly depends on the size of the
+	 * changes. As for {@link IncrementalValidator}, <strong>changedNodes</strong>
+	 * must contain every node which was removed or moved, or of which the
+	 * properties or out-edges changed (e.g. when an edge was retargeted, for its
+	 * start node). Nodes added since <strong>previous</strong> are found without
+	 * being listed.
+	 *
+	 * @param graphToCheck the graph to check (usually a Tree or a TreeGraph)
+	 * @param archetype    the compiled archetype to check against
+	 * @param options      the checking options
+	 * @param previous     the result of the previous check, null if none
+	 * @param changedNodes the nodes which changed since <strong>previous</strong>,
+	 *                     null if unknown
+	 * @return the check result
 	 */
 	@SuppressWarnings({ "unchecked", "unused" })
-	public void check(NodeSet<?> graphToCheck, ArchetypeRootSpec archetype) {
-		checkFailList.clear();
-		log.info("Checking against archetype: " + archetype.id());
+	public CheckResult check(NodeSet<?> graphToCheck, CompiledArchetype archetype, CheckOptions options,
+			CheckResult previous, Collection<? extends TreeNode> changedNodes) {
+		long start = System.nanoTime();
+		ErrorCollector.Budget budget = new ErrorCollector.Budget(options);
+		ErrorCollector checkFailList = new ErrorCollector(budget);
+		if (options.sink() != null)
+			options.sink().onStartCheck();
+		boolean complete = true;
+		int nNodes = 0;
+		int complyCount = 0;
+		log.info("Checking against archetype: " + archetype.archetypeId());
 		// first, check that the graph to check is a tree or a treegraph
 		Tree<? extends TreeNode> treeToCheck = null;
 		try {
@@ -279,82 +470,283 @@ public class Archetypes {
 			nRoots++;
 		}
 		if (nRoots > 1) {
-			checkFailList.add(new SpecificationErrorMsg(SpecificationErrors.TREE_MULTIPLE_ROOTS,
-					null,null, treeToCheck,archetype));
+			checkFailList.report(SpecificationErrors.TREE_MULTIPLE_ROOTS,
+					null,null, treeToCheck,archetype.archetype());
+		}
+		// constraints which cannot be built are reported once, not once per item
+		for (ConstraintPlan constraint : archetype.unresolvedConstraints()) {
+			for (int i = 0; i < constraint.unknownParameters.size(); i++)
+				checkFailList.report(SpecificationErrors.QUERY_PROPERTY_CLASS_UNKNOWN,
+						null,null,constraint.unknownParameterCauses.get(i), constraint.spec,
+						constraint.unknownParameters.get(i));
+			if (constraint.invalidParameters != null)
+				checkFailList.report(SpecificationErrors.QUERY_PARAMETERS_INVALID, null, null,
+					constraint.invalidParameters, constraint.spec, constraint.queryClassName);
 		}
 
+		SubtreeResults reuse = null;
 		if (treeToCheck != null) {
-			boolean exclusive = false;
-			if (archetype.properties().hasProperty("exclusive"))
-				exclusive = (Boolean) archetype.properties().getPropertyValue("exclusive");
-			int complyCount = 0;
-			List<TreeNode> compliantNodes = new ArrayList<>();
-			for (TreeNode tn : archetype.getChildren())
-				if (tn instanceof NodeSpec) {
-					NodeSpec hasNode = (NodeSpec) tn;
-					StringTable parentList = (StringTable) hasNode.properties().getPropertyValue(HAS_PARENT);
-					String requiredClass = (String) hasNode.properties().getPropertyValue(IS_OF_CLASS);
-					String requiredId = null;
-					if (hasNode.properties().hasProperty(HAS_ID))
-						requiredId = (String) hasNode.properties().getPropertyValue(HAS_ID);
-					List<NodeSpec> childrenSpec = getChildrenSpecs(hasNode, archetype);
-					// count must be made by parent, because multiplicities apply to parents
-					Map<TreeNode, Integer> countByParent = new HashMap<>();
-					for (TreeNode targetNode : treeToCheck.nodes()) {
-						if (matchesClass(targetNode, requiredClass) && matchesParent(targetNode, parentList)
-								&& matchesId(targetNode, requiredId)) {
-							log.info("checking node: " + targetNode.toUniqueString());
-							checkNode(targetNode, hasNode);
-							complyCount++;
-							compliantNodes.add(targetNode);
-							TreeNode parent = targetNode.getParent();
-							// counting realized multiplicity
-							if (parent != null) {
-								if (!countByParent.containsKey(parent))
-									countByParent.put(parent, 1);
-								else
-									countByParent.put(parent, countByParent.get(parent) + 1);
-							}
-							// checking that required children are here
-							for (NodeSpec childSpec : childrenSpec) {
-								IntegerRange childMult = (IntegerRange) childSpec.properties()
-										.getPropertyValue(MULTIPLICITY);
-								String childClassName = (String) childSpec.properties().getPropertyValue(IS_OF_CLASS);
-								List<TreeNode> children = (List<TreeNode>) get(targetNode.getChildren(),
-										selectZeroOrMany(hasTheLabel(childClassName)));
-								if (!childMult.inRange(children.size())) {
-									checkFailList.add(new SpecificationErrorMsg(
-										SpecificationErrors.NODE_RANGE_INCORRECT2, null,null, targetNode,
-										childClassName, childMult, children.size(), hasNode));
-								}
-							}
-						}
-					}
-					// checking multiplicity within parent
-					IntegerRange range = null;
-					if (hasNode.properties().hasProperty(MULTIPLICITY))
-						range = (IntegerRange) hasNode.properties().getPropertyValue(MULTIPLICITY);
-					else
-						range = new IntegerRange(0, Integer.MAX_VALUE);
-					for (int count : countByParent.values())
-						if (!range.inRange(count)) {
-							SpecificationErrorMsg chkmsg = new SpecificationErrorMsg(
-								SpecificationErrors.NODE_RANGE_INCORRECT1, null,null, hasNode, requiredClass,
-								parentList, range, count);
-							checkFailList.add(chkmsg);
-						}
-				}
+			List<TreeNode> nodes = new ArrayList<>(treeToCheck.nNodes());
+			for (TreeNode targetNode : treeToCheck.nodes())
+				nodes.add(targetNode);
+			nNodes = nodes.size();
+			// results of unchanged subtrees may be taken from the previous check
+			if (options.runsWithSubtreeReuse())
+				reuse = new SubtreeResults(archetype, nodes,
+					(previous == null) ? null : previous.subtreeResults(), changedNodes);
+			CheckedNodes checked;
+			if (options.runsInParallel(nodes.size()))
+				checked = checkNodesInParallel(nodes, archetype, options, reuse);
+			else
+				checked = checkNodes(nodes, 0, nodes.size(), archetype, budget, reuse);
+			if (reuse != null)
+				reuse.finish();
+			// an interrupted traversal gives incomplete counts: only report node errors
+			complete = checked.complete;
+			if (complete)
+				checkBatchConstraints(checked, archetype);
+			for (NodePlan hasNode : archetype.nodePlans()) {
+				checkFailList.appendAll(checked.errorsBySpec.get(hasNode.index));
+				if (!complete)
+					continue;
+				// checking multiplicity within parent
+				IntegerRange range = hasNode.multiplicity;
+				for (int count : checked.countByParentBySpec.get(hasNode.index).values())
+					if (!range.inRange(count))
+						checkFailList.report(SpecificationErrors.NODE_RANGE_INCORRECT1, null,null, hasNode.spec(),
+							hasNode.requiredClass, hasNode.parentList(), range, count);
+			}
 			// PROBLEM here: nodes added in sub-archetypes are not counted as valid here...
-			if (exclusive && (complyCount != treeToCheck.nNodes())) {
-				checkFailList.add(new SpecificationErrorMsg(SpecificationErrors.NODE_MISSING_SPECIFICATION, null,null,
-					treeToCheck, complyCount, compliantNodes));
+			complyCount = checked.compliantNodes.cardinality();
+			if (complete && archetype.isExclusive() && (complyCount != treeToCheck.nNodes())) {
+				List<TreeNode> nonCompliantNodes = new ArrayList<>(nNodes - complyCount);
+				for (int rank = checked.compliantNodes.nextClearBit(0); rank < nNodes;
+						rank = checked.compliantNodes.nextClearBit(rank + 1))
+					nonCompliantNodes.add(nodes.get(rank));
+				checkFailList.report(SpecificationErrors.NODE_MISSING_SPECIFICATION, null,null,
+					treeToCheck, complyCount, nonCompliantNodes);
+			}
+		}
+		CheckResult result = new CheckResult(archetype.archetypeId(), checkFailList.messages(),
+			checkFailList.nErrors(), complete && !budget.overflowed(), nNodes, complyCount,
+			System.nanoTime() - start, reuse);
+		if (options.sink() != null) {
+			checkFailList.streamGroups();
+			options.sink().onEndCheck(result.isValid());
+		}
+		lastResult.set(result);
+		return result;
+	}
+
+	/**
+	 * The (query, node) pairs of the sub-archetypes being run by a thread,
+	 * innermost last. Sub-archetypes rarely nest deeply, so that a linear search
+	 * is enough.
+	 */
+	private static class RunningSubArchetypes {
+		private ConstraintPlan[] plans = new ConstraintPlan[4];
+		private TreeNode[] nodes = new TreeNode[4];
+		private int size = 0;
+
+		// false if the query is already running on the node, otherwise it now is
+		boolean enter(ConstraintPlan plan, TreeNode node) {
+			for (int i = 0; i < size; i++)
+				if ((nodes[i] == node) && plans[i].sameQuery(plan))
+					return false;
+			if (size == plans.length) {
+				plans = Arrays.copyOf(plans, 2 * size);
+				nodes = Arrays.copyOf(nodes, 2 * size);
+			}
+			plans[size] = plan;
+			nodes[size++] = node;
+			return true;
+		}
+
+		void exit() {
+			size--;
+			plans[size] = null;
+			nodes[size] = null;
+		}
+	}
+
+	/**
+	 * The outcome of checking a contiguous range of nodes of the tree to check.
+	 * Errors are buffered by node spec so that they come out in archetype order.
+	 */
+	private static class CheckedNodes {
+		final List<ErrorCollector> errorsBySpec;
+		// count must be made by parent, because multiplicities apply to parents
+		final List<Map<TreeNode, Integer>> countByParentBySpec;
+		// compliant nodes, by rank in the tree node list - a node matching several
+		// specs is counted once
+		final BitSet compliantNodes = new BitSet();
+		// items waiting for a batch constraint, in tree order
+		final Map<ConstraintPlan, List<Object>> batchItems = new LinkedHashMap<>();
+		// nodes of which the out-edge classes were checked, by rank - only once
+		// per node, even if it matches several specs with edges
+		final BitSet edgeClassesChecked = new BitSet();
+		// false if the traversal stopped before the last node
+		boolean complete = true;
+
+		CheckedNodes(int nPlans, ErrorCollector.Budget budget) {
+			errorsBySpec = new ArrayList<>(nPlans);
+			countByParentBySpec = new ArrayList<>(nPlans);
+			for (int i = 0; i < nPlans; i++) {
+				errorsBySpec.add(new ErrorCollector(budget));
+				// insertion order makes the parent counts independent of the way nodes are split
+				countByParentBySpec.add(new LinkedHashMap<>());
 			}
 		}
+
+		// appends the results of the next range of nodes
+		void append(CheckedNodes next) {
+			for (int i = 0; i < errorsBySpec.size(); i++) {
+				errorsBySpec.get(i).appendAll(next.errorsBySpec.get(i));
+				Map<TreeNode, Integer> countByParent = countByParentBySpec.get(i);
+				for (Map.Entry<TreeNode, Integer> e : next.countByParentBySpec.get(i).entrySet())
+					countByParent.merge(e.getKey(), e.getValue(), Integer::sum);
+			}
+			compliantNodes.or(next.compliantNodes);
+			complete &= next.complete;
+			for (Map.Entry<ConstraintPlan, List<Object>> e : next.batchItems.entrySet())
+				batchItems.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).addAll(e.getValue());
+		}
+	}
+
+	// runs the batch constraints on the items collected during the traversal; their
+	// errors come after the other errors of the node spec owning the constraint
+	private void checkBatchConstraints(CheckedNodes checked, CompiledArchetype archetype) {
+		for (Map.Entry<ConstraintPlan, List<Object>> e : checked.batchItems.entrySet())
+			checkBatchConstraint(e.getKey(), e.getValue(),
+				checked.errorsBySpec.get(archetype.ownerIndex(e.getKey())));
+	}
+
+	// runs a single batch constraint on all its items
+	void checkBatchConstraint(ConstraintPlan constraint, List<Object> items, ErrorCollector errors) {
+		String queryNameStr = constraint.queryClassName.substring(constraint.queryClassName.lastIndexOf('.') + 1);
+		List<String[]> results;
+		try {
+			results = ((BatchConstraint) constraint.constraint).checkAll(Collections.unmodifiableList(items));
+		} catch (RuntimeException e) {
+			// a faulty constraint must not abort the check: all its items fail
+			log.log(Level.SEVERE, "Constraint '" + constraint.queryClassName + "' failed", e);
+			String[] msgs = TextTranslations.getCONSTRAINT_FAILED(constraint.queryClassName, e.getMessage());
+			results = Collections.nCopies(items.size(), msgs);
+		}
+		for (int i = 0; i < items.size(); i++) {
+			String[] msgs = results.get(i);
+			if (msgs != null)
+				reportQueryError(errors, items.get(i), msgs[0], msgs[1], queryNameStr, constraint.spec);
+		}
+	}
+
+	// checks nodes[from..to[ against the archetype - candidate specs are found by
+	// node class and id
+	private CheckedNodes checkNodes(List<TreeNode> nodes, int from, int to, CompiledArchetype archetype,
+			ErrorCollector.Budget budget, SubtreeResults reuse) {
+		CheckedNodes checked = new CheckedNodes(archetype.nNodeSpecs(), budget);
+		for (int rank = from; rank < to; rank++) {
+			// fail-fast: stop as soon as enough errors were found
+			if (budget.isExhausted()) {
+				checked.complete = false;
+				break;
+			}
+			TreeNode targetNode = nodes.get(rank);
+			if (reuse != null) {
+				checkOrReuse(targetNode, rank, archetype, checked, reuse);
+				continue;
+			}
+			checkCandidates(targetNode, rank, archetype.nodePlansForClass(targetNode.classId()), archetype,
+				checked);
+			checkCandidates(targetNode, rank,
+				archetype.nodePlansForClassAndId(targetNode.classId(), targetNode.id()), archetype, checked);
+		}
+		return checked;
+	}
+
+	private void checkCandidates(TreeNode targetNode, int rank, List<NodePlan> candidates,
+			CompiledArchetype archetype, CheckedNodes checked) {
+		for (NodePlan hasNode : candidates)
+			if (matchesParent(targetNode, hasNode)) {
+				boolean checkEdgeClasses = !hasNode.edgePlans.isEmpty() && !checked.edgeClassesChecked.get(rank);
+				if (checkEdgeClasses)
+					checked.edgeClassesChecked.set(rank);
+				checkNode(targetNode, hasNode, archetype, checked.errorsBySpec.get(hasNode.index),
+					checked.countByParentBySpec.get(hasNode.index), checked.batchItems, checkEdgeClasses);
+				checked.compliantNodes.set(rank);
+			}
+	}
+
+	// checks a node, or replays the result of the previous check if neither the
+	// node, the classes of its children nor its ancestors changed since
+	private void checkOrReuse(TreeNode targetNode, int rank, CompiledArchetype archetype, CheckedNodes checked,
+			SubtreeResults reuse) {
+		SubtreeResults.NodeResult result = reuse.previous(targetNode);
+		if (result == null) {
+			result = new SubtreeResults.NodeResult();
+			boolean edgeClassesChecked = false;
+			for (NodePlan hasNode : matchingPlans(targetNode, archetype)) {
+				ErrorCollector nodeErrors = ErrorCollector.unlimited();
+				Map<ConstraintPlan, List<Object>> nodeBatchItems = new LinkedHashMap<>();
+				boolean checkEdgeClasses = !hasNode.edgePlans.isEmpty() && !edgeClassesChecked;
+				edgeClassesChecked |= checkEdgeClasses;
+				checkNodeContent(targetNode, hasNode, archetype, nodeErrors, nodeBatchItems, checkEdgeClasses,
+					reuse);
+				result.addBatchItems(nodeBatchItems);
+				result.add(hasNode, nodeErrors.messages());
+			}
+			reuse.record(targetNode, result);
+		}
+		// batch constraints are always run again, on the items of all the nodes
+		for (Map.Entry<ConstraintPlan, List<Object>> e : result.batchItems().entrySet())
+			checked.batchItems.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).addAll(e.getValue());
+		for (int i = 0; i < result.plans.size(); i++) {
+			NodePlan hasNode = result.plans.get(i);
+			ErrorCollector errors = checked.errorsBySpec.get(hasNode.index);
+			for (ErrorMessagable msg : result.errorsByPlan.get(i))
+				errors.add(msg);
+			countInParent(targetNode, checked.countByParentBySpec.get(hasNode.index));
+			checked.compliantNodes.set(rank);
+		}
+	}
+
+	// the minimal number of nodes checked by a single task in parallel checks,
+	// unless the parallel threshold is lower
+	private static final int MIN_NODES_PER_TASK = 1000;
+
+	// splits the node list into contiguous ranges checked concurrently, then
+	// merges the results in node order, so that they match a sequential check
+	private CheckedNodes checkNodesInParallel(List<TreeNode> nodes, CompiledArchetype archetype,
+			CheckOptions options, SubtreeResults reuse) {
+		// a lower parallel threshold also allows smaller tasks
+		int minNodesPerTask = Math.min(MIN_NODES_PER_TASK, options.parallelThreshold());
+		int nTasks = Math.max(1, Math.min(4 * options.parallelism(), nodes.size() / minNodesPerTask));
+		int rangeSize = (nodes.size() + nTasks - 1) / nTasks;
+		List<CompletableFuture<CheckedNodes>> tasks = new ArrayList<>(nTasks);
+		for (int from = 0; from < nodes.size(); from += rangeSize) {
+			final int start = from;
+			final int end = Math.min(from + rangeSize, nodes.size());
+			// parallel checks never stop early, so every task can have its own budget
+			tasks.add(CompletableFuture.supplyAsync(
+				() -> checkNodes(nodes, start, end, archetype, new ErrorCollector.Budget(options), reuse),
+				options.executor()));
+		}
+		CheckedNodes checked = new CheckedNodes(archetype.nNodeSpecs(), new ErrorCollector.Budget(options));
+		try {
+			for (CompletableFuture<CheckedNodes> task : tasks)
+				checked.append(task.join());
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+		return checked;
 	}
 
 	// returns the list of property names possible for a given archetype node
 	@SuppressWarnings("unchecked")
-	private Set<String> getArchetypePropertyList(String archetypeNodeLabel) {
+	private static Set<String> getArchetypePropertyList(Tree<? extends TreeNode> archetypeArchetype,
+			String archetypeNodeLabel) {
 		Set<String> result = new HashSet<String>();
 		TreeNode an = (TreeNode) get(archetypeArchetype.root(), children(), selectOne(hasTheName(archetypeNodeLabel)));
 		for (TreeNode prop : (List<TreeNode>) get(an, children(), selectZeroOrMany(hasTheLabel(HAS_PROPERTY))))
@@ -364,156 +756,186 @@ public class Archetypes {
 	}
 
 	@SuppressWarnings("unchecked")
-	private void checkConstraints(Object item, TreeNode spec) {
-		// get the 'mustSatisfyQuery' label from the archetype factory
-		String qLabel = spec.factory().nodeClassName(ConstraintSpec.class);
-		for (ConstraintSpec queryNode : (List<ConstraintSpec>) get(spec, children(),
-				selectZeroOrMany(hasTheLabel(qLabel)))) {
-			ReadOnlyPropertyList queryProps = queryNode.properties();
-			String queryClassName = (String) queryProps.getPropertyValue(CLASS_NAME);
+	private void checkConstraints(Object item, List<ConstraintPlan> constraints, ErrorCollector errors,
+			Map<ConstraintPlan, List<Object>> batchItems, SubtreeResults reuse) {
+		for (ConstraintPlan constraint : constraints) {
+			ConstraintSpec queryNode = constraint.spec;
+			String queryClassName = constraint.queryClassName;
 			log.info("checking query: " + queryClassName);
-			// default properties: potential list
-			Set<String> defaultProps = getArchetypePropertyList("ConstraintSpec");
-			// find the default props that are effectively present in the above list and
-			// count them
-			int defaultPropCount = 0;
-			for (String key : queryProps.getKeysAsSet())
-				if (defaultProps.contains(key))
-					defaultPropCount += 1;
-			int parameterCount = queryProps.size() - defaultPropCount;
-			String[] parameterNames = new String[parameterCount];
-			Class<?>[] parameterTypes = new Class[parameterCount];
-			Object[] parameterValues = new Object[parameterCount];
-			int cnt = 0;
-			for (String key : queryProps.getKeysAsSet()) {
-				Property property = queryProps.getProperty(key);
-				if (!defaultProps.contains(key)) {
-					parameterNames[cnt] = property.getKey();
-					try {
-						parameterTypes[cnt] = Class.forName(property.getClassName());
-						// IDD: the property class is unknown
-					} catch (ClassNotFoundException e) {
-						checkFailList.add(new SpecificationErrorMsg(SpecificationErrors.QUERY_PROPERTY_CLASS_UNKNOWN,
-								null,null,e, queryNode, property));
-					}
-					parameterValues[cnt] = property.getValue();
-					cnt++;
+			if (constraint.isBatch()) {
+				batchItems.computeIfAbsent(constraint, k -> new ArrayList<>()).add(item);
+				continue;
+			}
+			if (constraint.constraint != null) {
+				String[] msgs;
+				try {
+					msgs = constraint.constraint.check(item);
+				} catch (RuntimeException e) {
+					// a faulty constraint must not abort the check
+					log.log(Level.SEVERE, "Constraint '" + queryClassName + "' failed", e);
+					msgs = TextTranslations.getCONSTRAINT_FAILED(queryClassName, e.getMessage());
+				}
+				if (msgs != null)
+					reportQueryError(errors, item, msgs[0], msgs[1],
+						queryClassName.substring(queryClassName.lastIndexOf('.') + 1), queryNode);
+				continue;
+			}
+			// until the query is known not to be a sub-archetype, its runs on nodes are
+			// tracked to detect cycles, and in subtree reuse mode, it is not run again
+			// on unchanged subtrees
+			TreeNode node = (item instanceof TreeNode) ? (TreeNode) item : null;
+			RunningSubArchetypes running = null;
+			if ((node != null) && !constraint.plainQuery) {
+				List<ErrorMessagable> known = (reuse == null) ? null : reuse.subArchetypeErrors(constraint, node);
+				if (known != null) {
+					for (ErrorMessagable msg : known)
+						errors.add(msg);
+					continue;
+				}
+				running = runningSubArchetypes.get();
+				if (!running.enter(constraint, node)) {
+					String[] msgs = TextTranslations.getSUBARCHETYPE_CYCLE(queryClassName, node.toShortString());
+					reportQueryError(errors, item, msgs[0], msgs[1],
+						queryClassName.substring(queryClassName.lastIndexOf('.') + 1), queryNode);
+					continue;
 				}
 			}
 			Queryable query = null;
-			Class<? extends Queryable> queryClass;
 			try {
-				queryClass = (Class<? extends Queryable>) Class.forName(queryClassName);
-				/**
-				 * Caution here: since properties can come in any order, the Query constructors
-				 * have to be able to handle changes in argument order. This means there must be
-				 * a constructor for every possible argument order. cf issue #4 in aot. If
-				 * argument order matters a Table should be used as a unique argument.
-				 */
-				Constructor<? extends Queryable> queryConstructor;
-				queryConstructor = queryClass.getConstructor(parameterTypes);
-				query = (Queryable) queryConstructor.newInstance(parameterValues);
+				query = constraint.newQuery();
+				// the query class or constructor could not be found when compiling
+				if (query == null)
+					continue;
 				query.submit(item);
 				// this to handle sub-archetypes, which return a list of check messages
 				if (query.result() instanceof Iterable<?>) {
+					if (constraint.plainQuery)
+						constraint.plainQuery = false;
+					List<ErrorMessagable> found = new ArrayList<>();
 					for (Object o : (Iterable<?>) query.result())
 						if (o instanceof ErrorMessagable) {
-							checkFailList.add((ErrorMessagable) o);
+							errors.add((ErrorMessagable) o);
+							found.add((ErrorMessagable) o);
 						}
+					if ((node != null) && (reuse != null))
+						reuse.recordSubArchetype(constraint, node, found);
 				} else {
+					if (!constraint.plainQuery)
+						constraint.plainQuery = true;
 					String queryNameStr = query.getClass().getSimpleName();
 					String msg = query.errorMsg();
-					if (msg != null) {
-						if (item instanceof Edge)
-							checkFailList.add(new SpecificationErrorMsg(SpecificationErrors.EDGE_QUERY_UNSATISFIED, query.actionMsg(),msg,
-									item, queryNameStr,queryNode));
-						else if (item instanceof TreeNode)
-							checkFailList.add(new SpecificationErrorMsg(SpecificationErrors.NODE_QUERY_UNSATISFIED,query.actionMsg(), msg,
-									item,queryNameStr,queryNode));
-						else if (item instanceof Property)
-							checkFailList.add(new SpecificationErrorMsg(SpecificationErrors.PROPERTY_QUERY_UNSATISFIED,
-									query.actionMsg(),msg, item, queryNameStr,queryNode));
-						else
-							checkFailList.add(new SpecificationErrorMsg(SpecificationErrors.ITEM_QUERY_UNSATISFIED,query.actionMsg(), msg,
-									item, queryNameStr,queryNode));
-					}
+					if (msg != null)
+						reportQueryError(errors, item, query.actionMsg(), msg, queryNameStr, queryNode);
 				}
-			} catch (Exception e) {
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable e) {
 				log.severe("Cannot instantiate Query '" + queryClassName + "'");
 				e.printStackTrace();
 				// this only means the query failed and it should be reported to the user
-			} // catch (Exception e) {
+			} // catch (Throwable e) {
+			finally {
+				if (running != null)
+					running.exit();
+			}
 		}
 	}
 
+	// reports the error matching the kind of item which failed a constraint
+	private static void reportQueryError(ErrorCollector errors, Object item, String actionMsg, String msg,
+			String queryNameStr, ConstraintSpec queryNode) {
+		if (item instanceof Edge)
+			errors.report(SpecificationErrors.EDGE_QUERY_UNSATISFIED, actionMsg,msg,
+					item, queryNameStr,queryNode);
+		else if (item instanceof TreeNode)
+			errors.report(SpecificationErrors.NODE_QUERY_UNSATISFIED,actionMsg, msg,
+					item,queryNameStr,queryNode);
+		else if (item instanceof Property)
+			errors.report(SpecificationErrors.PROPERTY_QUERY_UNSATISFIED,
+					actionMsg,msg, item, queryNameStr,queryNode);
+		else
+			errors.report(SpecificationErrors.ITEM_QUERY_UNSATISFIED,actionMsg, msg,
+					item, queryNameStr,queryNode);
+	}
+
 	private boolean edgeLabelMatch(Edge e, String label) {
 		if (label != null)
 			return (e.classId().equals(label));
 		return false;
 	}
 
-	@SuppressWarnings("unchecked")
-	private void checkEdges(TreeNode nodeToCheck, NodeSpec hasNode) {
-		// get the 'hasEdge' label from the archetype factory
-		String eLabel = hasNode.factory().nodeClassName(EdgeSpec.class);
+	private void checkEdges(TreeNode nodeToCheck, NodePlan hasNode, ErrorCollector errors,
+			Map<ConstraintPlan, List<Object>> batchItems, boolean checkEdgeClasses) {
 //		int toNodeCount = 0;
 //		int fromNodeCount = 0; // fromNode disabled for the moment
-		for (EdgeSpec edgeSpec : (List<EdgeSpec>) get(hasNode, children(), selectZeroOrMany(hasTheLabel(eLabel)))) {
-			log.info("checking edge spec: " + edgeSpec.toUniqueString());
-			SimplePropertyList eprops = edgeSpec.properties();
+		if (hasNode.edgePlans.isEmpty())
+			return;
+		// group out-edges by edge class in a single pass over the node's edges, so
+		// that each edge spec only looks at the edges carrying its label
+		Map<String, List<Edge>> outEdgesByClass = null;
+		if (nodeToCheck instanceof Node) {
+			outEdgesByClass = new HashMap<>();
+			for (Edge ed : ((Node) nodeToCheck).edges(Direction.OUT))
+				outEdgesByClass.computeIfAbsent(ed.classId(), k -> new ArrayList<>(2)).add(ed);
+			// check edge classes exist - once per node and edge class, not once per edge spec
+			if (checkEdgeClasses)
+				for (Map.Entry<String, List<Edge>> e : outEdgesByClass.entrySet()) {
+					Edge first = e.getValue().get(0);
+					if (first.factory().edgeClass(e.getKey()) != null)
+						continue;
+					// the edge spec with this label, if any
+					EdgeSpec edgeSpec = null;
+					for (EdgePlan edgePlan : hasNode.edgePlans)
+						if (e.getKey().equals(edgePlan.edgeLabel)) {
+							edgeSpec = edgePlan.spec();
+							break;
+						}
+					for (Edge ed : e.getValue())
+						errors.report(SpecificationErrors.EDGE_CLASS_UNKNOWN, null, null, ed, edgeSpec, e.getKey(),
+							ed.factory().toString());
+				}
+		}
+		for (EdgePlan edgePlan : hasNode.edgePlans) {
+			// the spec itself is only needed to report errors
+			log.info(() -> "checking edge spec: " + edgePlan.spec().toUniqueString());
 			// edge spec toNode
-			String toNodeRef = null;
-			if (eprops.hasProperty(TO_NODE))
-				toNodeRef = (String) eprops.getPropertyValue(TO_NODE);
-			else { // this is an error, an edge spec must have a toNode property
-				checkFailList.add(
-					new SpecificationErrorMsg(SpecificationErrors.PROPERTY_MISSING, null,null, nodeToCheck,
-					edgeSpec, TO_NODE));
+			String toNodeRef = edgePlan.toNodeRef;
+			if (toNodeRef == null) { // this is an error, an edge spec must have a toNode property
+				errors.report(SpecificationErrors.PROPERTY_MISSING, null,null, nodeToCheck,
+					edgePlan.spec(), TO_NODE);
 			}
 			// edge spec fromNode (= the parent hasNode class type)
-			String fromNodeRef = null;
-			if (hasNode.properties().hasProperty(IS_OF_CLASS))
-				fromNodeRef = (String) hasNode.properties().getPropertyValue(IS_OF_CLASS);
-			else { // error, parent must have a class
-				String msg = "'" + IS_OF_CLASS + "' property missing for edge 'from' node specification " + edgeSpec;
-				checkFailList.add(
-					new SpecificationErrorMsg(SpecificationErrors.PROPERTY_MISSING, null,msg, nodeToCheck,
-					edgeSpec, IS_OF_CLASS));
+			String fromNodeRef = hasNode.requiredClass;
+			if (fromNodeRef == null) { // error, parent must have a class
+				String msg = errors.keepsMessages() ?
+					"'" + IS_OF_CLASS + "' property missing for edge 'from' node specification " + edgePlan.spec() : null;
+				errors.report(SpecificationErrors.PROPERTY_MISSING, null,msg, nodeToCheck,
+					edgePlan.spec(), IS_OF_CLASS);
 			}
 			// edge spec multiplicity
-			IntegerRange edgeMult = new IntegerRange(1, 1);
-			if (eprops.hasProperty(MULTIPLICITY))
-				edgeMult = (IntegerRange) eprops.getPropertyValue(MULTIPLICITY);
+			IntegerRange edgeMult = edgePlan.multiplicity;
 			// edge spec label
-			String edgeLabel = null; // valid default value ???
-			if (eprops.hasProperty(IS_OF_CLASS))
-				edgeLabel = (String) eprops.getPropertyValue(IS_OF_CLASS);
+			String edgeLabel = edgePlan.edgeLabel;
 			// edge spec id
-			String edgeId = null;
-			if (eprops.hasProperty(HAS_ID))
-				edgeId = (String) eprops.getPropertyValue(HAS_ID);
+			String edgeId = edgePlan.edgeId;
 			// search for edges that point to nodes types or names listed in the spec
 			List<Duple<Node, Node>> edgeEnds = new LinkedList<>();
 			// for nodeToCheck to have edges, it must be a subclass of Node
-			if (nodeToCheck instanceof Node) {
-				Node node = (Node) nodeToCheck;
-				for (Edge ed : node.edges(Direction.OUT)) {
-					// check edge class exists
-					if (ed.factory().edgeClass(ed.classId()) == null) {
-						checkFailList.add(
-							new SpecificationErrorMsg(SpecificationErrors.EDGE_CLASS_UNKNOWN,null, null, ed,
-							edgeSpec, edgeLabel, ed.factory().toString()));
-					}
-					if (NodeReference.matchesRef((TreeNode) ed.endNode(), toNodeRef)
-							&& NodeReference.matchesRef((TreeNode) ed.startNode(), fromNodeRef)
+			if (outEdgesByClass != null) {
+				// the start node of all out-edges is nodeToCheck, and fromNodeRef a class name
+				boolean fromNodeMatches = nodeToCheck.classId().equals(fromNodeRef);
+				// only edges whose class is the spec label can match (cf. edgeLabelMatch())
+				List<Edge> candidates = (fromNodeMatches && edgeLabel != null) ?
+					outEdgesByClass.getOrDefault(edgeLabel, List.of()) : List.of();
+				for (Edge ed : candidates) {
+					if (edgePlan.toNodeMatcher.matches((TreeNode) ed.endNode())
 							&& edgeLabelMatch(ed, edgeLabel)) {
 						boolean ok = true;
 						// check edge label
 						if (edgeLabel != null)
 							if (!ed.classId().equals(edgeLabel)) {
-								checkFailList.add(
-									new SpecificationErrorMsg(SpecificationErrors.EDGE_CLASS_INCORRECT,
-									null,null, ed, edgeSpec, edgeLabel));
+								errors.report(SpecificationErrors.EDGE_CLASS_INCORRECT,
+									null,null, ed, edgePlan.spec(), edgeLabel);
 								ok = false;
 							}
 						// check edge id
@@ -521,10 +943,10 @@ public class Archetypes {
 							if (!ed.id().equals(edgeId)) {
 //								String msg = "Edge " + ed + " should have id [" + edgeId + "]. Id [" + ed.id()
 //									+ "] found instead."; // not used in method
-								checkFailList.add(
-//									new SpecificationErrorMsg(SpecificationErrors.EDGE_ID_INCORRECT,null, msg,
-									new SpecificationErrorMsg(SpecificationErrors.EDGE_ID_INCORRECT,null, null,
-									ed, edgeId));
+								errors.report(
+//									SpecificationErrors.EDGE_ID_INCORRECT,null, msg,
+									SpecificationErrors.EDGE_ID_INCORRECT,null, null,
+									ed, edgeId);
 								ok = false;
 							}
 						// above errors cause an edge multiplicity error
@@ -533,17 +955,14 @@ public class Archetypes {
 						// check queries on edge & edge properties
 						// these do not cause multiplicity errors
 						if (ed instanceof ReadOnlyDataHolder)
-							checkEdgeProperties(ed, edgeSpec);
-						checkConstraints(ed, edgeSpec);
+							checkProperties(ed, edgePlan.propertyPlans, errors, batchItems);
+						checkConstraints(ed, edgePlan.constraintPlans, errors, batchItems, null);
 					}
 				} // loop on edges
 				// check edge multiplicity
-				try {
-					edgeMult.check(edgeEnds.size());
-				} catch (Exception e) {
-					checkFailList.add(new SpecificationErrorMsg(
-						SpecificationErrors.EDGE_RANGE_INCORRECT,null, null,
-						nodeToCheck, edgeMult, edgeLabel, toNodeRef, edgeEnds.size(), edgeSpec));
+				if (!edgeMult.inRange(edgeEnds.size())) {
+					errors.report(SpecificationErrors.EDGE_RANGE_INCORRECT,null, null,
+						nodeToCheck, edgeMult, edgeLabel, toNodeRef, edgeEnds.size(), edgePlan.spec());
 				}
 			}
 			// else error ? we must have a Node here ?
@@ -583,134 +1002,191 @@ public class Archetypes {
 //			}
 //		}
 //	}
-	@SuppressWarnings("unchecked")
-	private void checkNodeProperties(Object element, NodeSpec hasNode) {
-//		showElementProperties(element);
-		// get the 'hasProperty' label from the archetype factory
-		String pLabel = hasNode.factory().nodeClassName(PropertySpec.class);
-		List<PropertySpec> lp = (List<PropertySpec>) get(hasNode, children(), selectZeroOrMany(hasTheLabel(pLabel)));
-		checkProperties(element, lp);
-	}
-
-	@SuppressWarnings("unchecked")
-	private void checkEdgeProperties(Object element, EdgeSpec hasEdge) {
-//		showElementProperties(element);
-		// get the 'hasProperty' label from the archetype factory
-		String pLabel = hasEdge.factory().nodeClassName(PropertySpec.class);
-		List<PropertySpec> lp = (List<PropertySpec>) get(hasEdge, children(), selectZeroOrMany(hasTheLabel(pLabel)));
-		checkProperties(element, lp);
-	}
-
-	private void checkProperties(Object element, List<PropertySpec> pSpecList) {
-		for (PropertySpec propertyArchetype : pSpecList) {
-			log.info("checking property spec: " + propertyArchetype.toUniqueString());
-			SimplePropertyList pprops = propertyArchetype.properties();
+	private void checkProperties(Object element, List<PropertyPlan> pSpecList, ErrorCollector errors,
+			Map<ConstraintPlan, List<Object>> batchItems) {
+		for (PropertyPlan propertyPlan : pSpecList) {
+			// the spec itself is only needed to report errors
+			log.info(() -> "checking property spec: " + propertyPlan.spec().toUniqueString());
 			// property spec name
-			String key = null;
-			if (pprops.hasProperty(HAS_NAME))
-				key = (String) pprops.getPropertyValue(HAS_NAME);
-			else { // this is an error, a property must have a name
-				checkFailList.add(
-					new SpecificationErrorMsg(SpecificationErrors.PROPERTY_MISSING,null, null, element,
-					propertyArchetype, HAS_NAME));
+			String key = propertyPlan.key;
+			if (key == null) { // this is an error, a property must have a name
+				errors.report(SpecificationErrors.PROPERTY_MISSING,null, null, element,
+					propertyPlan.spec(), HAS_NAME);
 			}
 			// property spec type
-			String typeName = null;
-			if (pprops.hasProperty(TYPE)) {
-				typeName = (String) pprops.getPropertyValue(TYPE);
-			}else { // this is an error, a property must have a name
-				String msg = "'" + TYPE + "' property missing for property specification " + propertyArchetype;
-				checkFailList.add(
-					new SpecificationErrorMsg(SpecificationErrors.PROPERTY_MISSING,null, msg, element,
-					propertyArchetype, TYPE));
+			String typeName = propertyPlan.typeName;
+			if (typeName == null) { // this is an error, a property must have a name
+				String msg = errors.keepsMessages() ?
+					"'" + TYPE + "' property missing for property specification " + propertyPlan.spec() : null;
+				errors.report(SpecificationErrors.PROPERTY_MISSING,null, msg, element,
+					propertyPlan.spec(), TYPE);
 			}
 			// property spec multiplicity
-			IntegerRange multiplicity = new IntegerRange(1, 1);
-			if (pprops.hasProperty(MULTIPLICITY)) {
-				multiplicity = (IntegerRange) pprops.getPropertyValue(MULTIPLICITY);
-			}else { // this is an error, a property must have a name
-				String msg = "'" + MULTIPLICITY + "' property missing for property specification "
-					+ propertyArchetype;
-				checkFailList.add(
-					new SpecificationErrorMsg(SpecificationErrors.PROPERTY_MISSING, null,msg, element,
-					propertyArchetype, MULTIPLICITY));
+			IntegerRange multiplicity = propertyPlan.multiplicity;
+			if (propertyPlan.multiplicityMissing) { // this is an error, a property must have a name
+				String msg = errors.keepsMessages() ?
+					"'" + MULTIPLICITY + "' property missing for property specification " + propertyPlan.spec() : null;
+				errors.report(SpecificationErrors.PROPERTY_MISSING, null,msg, element,
+					propertyPlan.spec(), MULTIPLICITY);
 			}
 			if (element instanceof ReadOnlyDataHolder) {
 				// Problem is element has property value for 'key' of null
 				ReadOnlyPropertyList nprops = ((ReadOnlyDataHolder) element).properties();
 				if (!nprops.hasProperty(key)) { // property not found
 					if (!multiplicity.inRange(0)) { // this is an error, this property should be there!
-						String msg = "Required property '" + key + "' missing for element " + element;
-						checkFailList.add(
-							new SpecificationErrorMsg(SpecificationErrors.PROPERTY_MISSING,null, msg, element,
-							propertyArchetype, key));
+						String msg = errors.keepsMessages() ?
+							"Required property '" + key + "' missing for element " + element : null;
+						errors.report(SpecificationErrors.PROPERTY_MISSING,null, msg, element,
+							propertyPlan.spec(), key);
 					}
 				} else { // property is here
 					Property prop = nprops.getProperty(key);
 					Object pvalue = prop.getValue();
 					String ptype = null;
-					if (pvalue != null) {
-						ptype = ValidPropertyTypes.typeOf(pvalue);
-						// JG 13/8/2021 hack for properties represented by a superclass (usually, an interface
-						// - case of the geometric classes in uit
-						if (ptype==null) {
-							Class<?>[] interfaces = pvalue.getClass().getInterfaces();
-							for (Class<?> ic:interfaces) {
-								if (ValidPropertyTypes.isValid(ic.getSimpleName()))
-									ptype = ic.getSimpleName();
-							}
-							if (ptype==null) {// Last chance!
-								interfaces = pvalue.getClass().getSuperclass().getInterfaces();
-								for (Class<?> ic:interfaces) {
-									if (ValidPropertyTypes.isValid(ic.getSimpleName()))
-										ptype = ic.getSimpleName();
-								}
-							}
-						}
-						// end hack
-					}
+					if (pvalue != null)
+						ptype = propertyType(pvalue);
 					if (ptype == null) { // the property type is not in the valid property type list
-						checkFailList.add(
-							new SpecificationErrorMsg(SpecificationErrors.PROPERTY_UNKNOWN, null,null, element,
-							propertyArchetype, key));
+						errors.report(SpecificationErrors.PROPERTY_UNKNOWN, null,null, element,
+							propertyPlan.spec(), key);
 					} else if (!ptype.equals(typeName)) { // the property type is not the one required
-						checkFailList.add(
-							new SpecificationErrorMsg(SpecificationErrors.PROPERTY_TYPE_INCORRECT, null,null,
-							element, propertyArchetype, key, typeName, ptype));
+						errors.report(SpecificationErrors.PROPERTY_TYPE_INCORRECT, null,null,
+							element, propertyPlan.spec(), key, typeName, ptype);
 					}
-					checkConstraints(prop, propertyArchetype);
+					checkConstraints(prop, propertyPlan.constraintPlans, errors, batchItems, null);
 				}
 			} else {
 				// properties specified but object has no property list
-				checkFailList.add(
-					new SpecificationErrorMsg(SpecificationErrors.ELEMENT_MISSING_PROPERTY_LIST,null, null,
-					element, propertyArchetype));
+				errors.report(SpecificationErrors.ELEMENT_MISSING_PROPERTY_LIST,null, null,
+					element, propertyPlan.spec());
 			}
 		} // loop on PropertySpecs
 	}
 
-	private void checkNode(TreeNode nodeToCheck, NodeSpec hasNode) {
-		checkConstraints(nodeToCheck, hasNode);
-		checkEdges(nodeToCheck, hasNode);
-		checkNodeProperties(nodeToCheck, hasNode);
+	// the property type names found so far, by value class
+	private static final ClassValue<AtomicReference<String>> propertyTypes = new ClassValue<>() {
+		@Override
+		protected AtomicReference<String> computeValue(Class<?> type) {
+			return new AtomicReference<>();
+		}
+	};
+
+	// the property type name of a value, resolved once per value class
+	private static String propertyType(Object pvalue) {
+		AtomicReference<String> cached = propertyTypes.get(pvalue.getClass());
+		String ptype = cached.get();
+		if (ptype == null) {
+			ptype = resolvePropertyType(pvalue);
+			// unknown types are not remembered, since they may be registered later
+			if (ptype != null)
+				cached.set(ptype);
+		}
+		return ptype;
+	}
+
+	private static String resolvePropertyType(Object pvalue) {
+		String ptype = ValidPropertyTypes.typeOf(pvalue);
+		// JG 13/8/2021 hack for properties represented by a superclass (usually, an interface
+		// - case of the geometric classes in uit
+		if (ptype==null) {
+			Class<?>[] interfaces = pvalue.getClass().getInterfaces();
+			for (Class<?> ic:interfaces) {
+				if (ValidPropertyTypes.isValid(ic.getSimpleName()))
+					ptype = ic.getSimpleName();
+			}
+			if (ptype==null) {// Last chance!
+				interfaces = pvalue.getClass().getSuperclass().getInterfaces();
+				for (Class<?> ic:interfaces) {
+					if (ValidPropertyTypes.isValid(ic.getSimpleName()))
+						ptype = ic.getSimpleName();
+				}
+			}
+		}
+		// end hack
+		return ptype;
+	}
+
+	// checks a node which matches a node spec, and records it for its parent
+	// multiplicity count
+	private void checkNode(TreeNode targetNode, NodePlan hasNode, CompiledArchetype archetype,
+			ErrorCollector errors, Map<TreeNode, Integer> countByParent,
+			Map<ConstraintPlan, List<Object>> batchItems, boolean checkEdgeClasses) {
+		checkNodeContent(targetNode, hasNode, archetype, errors, batchItems, checkEdgeClasses, null);
+		countInParent(targetNode, countByParent);
+	}
+
+	private static void countInParent(TreeNode targetNode, Map<TreeNode, Integer> countByParent) {
+		TreeNode parent = targetNode.getParent();
+		// counting realized multiplicity
+		if (parent != null) {
+			if (!countByParent.containsKey(parent))
+				countByParent.put(parent, 1);
+			else
+				countByParent.put(parent, countByParent.get(parent) + 1);
+		}
+	}
+
+	/**
+	 * Checks the constraints, edges, properties and children of a node against one
+	 * of its matching node specs. Nothing is counted, so that the result only
+	 * depends on the node and its children. The classes of the out-edges of a
+	 * node are only checked if {@code checkEdgeClasses} is set, which callers do
+	 * for the first matching spec with edges. In subtree reuse mode, {@code reuse}
+	 * holds the sub-archetype results of the previous check, null otherwise.
+	 */
+	void checkNodeContent(TreeNode targetNode, NodePlan hasNode, CompiledArchetype archetype,
+			ErrorCollector errors, Map<ConstraintPlan, List<Object>> batchItems, boolean checkEdgeClasses,
+			SubtreeResults reuse) {
+		log.info("checking node: " + targetNode.toUniqueString());
+		checkConstraints(targetNode, hasNode.constraintPlans, errors, batchItems, reuse);
+		checkEdges(targetNode, hasNode, errors, batchItems, checkEdgeClasses);
+		checkProperties(targetNode, hasNode.propertyPlans, errors, batchItems);
+		// checking that required children are here
+		List<NodePlan> childPlans = archetype.childPlans(targetNode);
+		if (childPlans.isEmpty())
+			return;
+		// children are counted by class in a single pass
+		int[] childCounts = childCountsByClass.get();
+		if (childCounts.length < archetype.nClasses()) {
+			childCounts = new int[archetype.nClasses()];
+			childCountsByClass.set(childCounts);
+		}
+		else
+			Arrays.fill(childCounts, 0, archetype.nClasses(), 0);
+		for (TreeNode child : targetNode.getChildren()) {
+			int rank = archetype.classRank(child.classId());
+			if (rank >= 0)
+				childCounts[rank]++;
+		}
+		for (NodePlan childSpec : childPlans) {
+			IntegerRange childMult = childSpec.multiplicity;
+			String childClassName = childSpec.requiredClass;
+			int rank = archetype.classRank(childSpec);
+			int nChildren = (rank < 0) ? 0 : childCounts[rank];
+			if (!childMult.inRange(nChildren)) {
+				errors.report(SpecificationErrors.NODE_RANGE_INCORRECT2, null,null, targetNode,
+					childClassName, childMult, nChildren, hasNode.spec(), childSpec.spec());
+			}
+		}
 	}
 
 	/**
-	 * Get the checking errors.
+	 * Get the checking errors of the last check made by the calling thread.
 	 *
 	 * @return null if no checking errors, the (read-only) list of errors otherwise
+	 *         (empty if the check was made without messages)
 	 */
 	public Iterable<ErrorMessagable> errorList() {
-		if (checkFailList.isEmpty())
+		CheckResult result = lastResult.get();
+		if ((result == null) || result.isValid())
 			return null;
 		else
-			return checkFailList;
+			return result.errors();
 	}
 
 	// temporary, for debugging
 	@Override
 	public String toString() {
-		return archetypeArchetype.toString();
+		return MetaArchetype.tree().toString();
 	}
 
 }
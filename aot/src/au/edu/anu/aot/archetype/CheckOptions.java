@@ -0,0 +1,303 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.archetype;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import au.edu.anu.aot.errorMessaging.ErrorListListener;
+import au.edu.anu.aot.errorMessaging.ErrorMessageManager;
+
+/**
+ * <p>
+ * Options for {@link Archetypes#check(fr.cnrs.iees.omugi.graph.NodeSet, CompiledArchetype, CheckOptions)
+ * Archetypes.check(...)}. Instances are immutable: every {@code with...()}
+ * method returns a new instance.
+ * </p>
+ * <p>
+ * By default, checks are sequential. In parallel mode, the nodes of the tree to
+ * check are split into contiguous ranges checked concurrently on an
+ * {@link Executor} (the common {@link ForkJoinPool} unless another one is
+ * given). Errors found in every range are merged in tree order, so that the
+ * result is exactly the same as with a sequential check. Trees smaller than the
+ * parallel threshold are always checked sequentially.
+ * </p>
+ * <p>
+ * A check may also stop after a given number of errors ({@link #withMaxErrors(int)}),
+ * and may count errors without building any message ({@link #withMessages(boolean)}).
+ * {@link #validityOnly()} combines both to answer the question "is this tree
+ * valid?" as fast as possible. Checks which may stop early are always
+ * sequential, so that the errors found are the first ones in tree order.
+ * </p>
+ * <p>
+ * Errors can also be streamed to an {@link ErrorListListener} as soon as they
+ * are found ({@link #streamingTo(ErrorListListener)}), e.g. to
+ * {@link ErrorMessageManager#listener()}. The listener then receives them in
+ * discovery order, which is not the order of {@link CheckResult#errors()}.
+ * </p>
+ */
+public final class CheckOptions {
+
+	/** the default minimal number of nodes for a tree to be checked in parallel */
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 10_000;
+
+	/** the maximal number of errors of a check which does not stop early */
+	public static final int UNLIMITED = Integer.MAX_VALUE;
+
+	private static final CheckOptions SEQUENTIAL = new CheckOptions(null, DEFAULT_PARALLEL_THRESHOLD, UNLIMITED,
+		true, null, 0, false);
+
+	private static final CheckOptions VALIDITY_ONLY = new CheckOptions(null, DEFAULT_PARALLEL_THRESHOLD, 1, false,
+		null, 0, false);
+
+	/** null means sequential */
+	private final Executor executor;
+
+	private final int parallelThreshold;
+
+	private final int maxErrors;
+
+	private final boolean keepMessages;
+
+	/** null means no streaming */
+	private final ErrorListListener sink;
+
+	/** the number of samples kept by error group, 0 if errors are not grouped */
+	private final int aggregation;
+
+	/** true to reuse the results of unchanged subtrees of the previous check */
+	private final boolean reuseSubtrees;
+
+	private CheckOptions(Executor executor, int parallelThreshold, int maxErrors, boolean keepMessages,
+			ErrorListListener sink, int aggregation, boolean reuseSubtrees) {
+		super();
+		this.reuseSubtrees = reuseSubtrees;
+		this.aggregation = aggregation;
+		this.executor = executor;
+		this.parallelThreshold = parallelThreshold;
+		this.maxErrors = maxErrors;
+		this.keepMessages = keepMessages;
+		this.sink = sink;
+	}
+
+	/**
+	 * @return options for a sequential check (the default)
+	 */
+	public static CheckOptions sequential() {
+		return SEQUENTIAL;
+	}
+
+	/**
+	 * @return options for a parallel check on the common {@link ForkJoinPool}
+	 */
+	public static CheckOptions parallel() {
+		return new CheckOptions(ForkJoinPool.commonPool(), DEFAULT_PARALLEL_THRESHOLD, UNLIMITED, true, null, 0,
+			false);
+	}
+
+	/**
+	 * @param executor the executor to run the check tasks
+	 * @return options for a parallel check on the executor passed as argument
+	 */
+	public static CheckOptions parallel(Executor executor) {
+		if (executor == null)
+			throw new IllegalArgumentException("Parallel checks require an executor");
+		return new CheckOptions(executor, DEFAULT_PARALLEL_THRESHOLD, UNLIMITED, true, null, 0, false);
+	}
+
+	/**
+	 * @return options for a check stopping at the first error and building no
+	 *         error message
+	 */
+	public static CheckOptions validityOnly() {
+		return VALIDITY_ONLY;
+	}
+
+	/**
+	 * @param nNodes the minimal number of nodes for a tree to be checked in
+	 *               parallel, which is also the minimal number of nodes checked by
+	 *               a task if lower than the default task size (1000 nodes)
+	 * @return a copy of these options with the new threshold
+	 */
+	public CheckOptions withParallelThreshold(int nNodes) {
+		return new CheckOptions(executor, Math.max(nNodes, 1), maxErrors, keepMessages, sink, aggregation,
+			reuseSubtrees);
+	}
+
+	/**
+	 * @param n the number of errors after which the check stops
+	 * @return a copy of these options with the new limit
+	 */
+	public CheckOptions withMaxErrors(int n) {
+		if (n < 1)
+			throw new IllegalArgumentException("A check must be allowed at least one error");
+		return new CheckOptions(executor, parallelThreshold, n, keepMessages, sink, aggregation, reuseSubtrees);
+	}
+
+	/**
+	 * @param keep {@code false} to only count errors, without building messages
+	 * @return a copy of these options with the new setting
+	 */
+	public CheckOptions withMessages(boolean keep) {
+		return new CheckOptions(executor, parallelThreshold, maxErrors, keep, sink, aggregation, reuseSubtrees);
+	}
+
+	/**
+	 * Streams the check to a listener: {@link ErrorListListener#onStartCheck()}
+	 * is called before checking, {@link ErrorListListener#onReceiveMsg(au.edu.anu.aot.errorMessaging.ErrorMessagable)
+	 * onReceiveMsg(...)} for every error as soon as it is found (even if messages
+	 * are not kept in the result), and {@link ErrorListListener#onEndCheck(boolean)}
+	 * at the end. In parallel checks, calls are serialized on the listener.
+	 * 
+	 * @param listener the listener to stream errors to, null for none
+	 * @return a copy of these options with the new listener
+	 */
+	public CheckOptions streamingTo(ErrorListListener listener) {
+		return new CheckOptions(executor, parallelThreshold, maxErrors, keepMessages, listener, aggregation,
+			reuseSubtrees);
+	}
+
+	/**
+	 * @return {@code true} if these options allow parallel checks
+	 */
+	public boolean isParallel() {
+		return executor != null;
+	}
+
+	/**
+	 * @return the minimal number of nodes for a tree to be checked in parallel
+	 */
+	public int parallelThreshold() {
+		return parallelThreshold;
+	}
+
+	/**
+	 * @return the number of errors after which a check stops, {@link #UNLIMITED}
+	 *         by default
+	 */
+	public int maxErrors() {
+		return maxErrors;
+	}
+
+	/**
+	 * @return {@code true} if error messages are built (the default)
+	 */
+	public boolean keepsMessages() {
+		return keepMessages;
+	}
+
+	/**
+	 * @return the listener errors are streamed to, null if none
+	 */
+	public ErrorListListener sink() {
+		return sink;
+	}
+
+	/**
+	 * Group the errors by error type and originating specification: the result
+	 * (and the listener errors are streamed to) then gets one
+	 * {@link au.edu.anu.aot.errorMessaging.impl.AggregatedErrorMsg AggregatedErrorMsg}
+	 * per group instead of one message per error. Groups are only streamed once
+	 * complete, at the end of the check, in the order of
+	 * {@link CheckResult#errors()}. {@link CheckResult#nErrors()} still counts
+	 * every error.
+	 * 
+	 * @param maxSamples the number of errors kept as samples by every group, 0 to
+	 *                   stop grouping errors
+	 * @return a copy of these options with the new setting
+	 */
+	public CheckOptions withAggregation(int maxSamples) {
+		return new CheckOptions(executor, parallelThreshold, maxErrors, keepMessages, sink, Math.max(maxSamples, 0),
+			reuseSubtrees);
+	}
+
+	/**
+	 * @return the number of samples kept by error group, 0 if errors are not
+	 *         grouped (the default)
+	 */
+	public int aggregation() {
+		return aggregation;
+	}
+
+	/**
+	 * Keep the node results of the check in its {@link CheckResult}, and reuse
+	 * those of the previous check passed to
+	 * {@link Archetypes#check(fr.cnrs.iees.omugi.graph.NodeSet, CompiledArchetype, CheckOptions, CheckResult, java.util.Collection)
+	 * Archetypes.check(..., previous, changedNodes)} for all the nodes which did
+	 * not change since. The check keeps structural hashes of every node and
+	 * subtree (covering node classes, ids, properties and out-edges), and only
+	 * computes again those of the nodes which changed and of their ancestors. A
+	 * node is checked again if its hash, its parent or the classes of its
+	 * children changed, or if one of its ancestors moved; otherwise its errors
+	 * are replayed. As for {@link IncrementalValidator}, constraints are assumed
+	 * to only depend on the item they check. Sub-archetypes are only run again
+	 * if the subtree of their node changed. Multiplicities within parents,
+	 * exclusivity and batch constraints are always recomputed. The first check
+	 * costs more than without this option, since it hashes every node; the next
+	 * ones pay when the same large tree is checked repeatedly after small edits.
+	 * It is ignored by checks which may stop early or do not build messages.
+	 * 
+	 * @param reuse {@code true} to reuse the results of unchanged nodes
+	 * @return a copy of these options with the new setting
+	 */
+	public CheckOptions withSubtreeReuse(boolean reuse) {
+		return new CheckOptions(executor, parallelThreshold, maxErrors, keepMessages, sink, aggregation, reuse);
+	}
+
+	/**
+	 * @return {@code true} if the results of unchanged subtrees are reused
+	 *         (default is {@code false})
+	 */
+	public boolean reusesSubtrees() {
+		return reuseSubtrees;
+	}
+
+	// true if the results of unchanged subtrees can be reused
+	boolean runsWithSubtreeReuse() {
+		return reuseSubtrees && (maxErrors == UNLIMITED) && keepMessages;
+	}
+
+	// true if a tree of this size must be checked in parallel
+	boolean runsInParallel(int nNodes) {
+		return (executor != null) && (nNodes >= parallelThreshold) && (maxErrors == UNLIMITED);
+	}
+
+	Executor executor() {
+		return executor;
+	}
+
+	// the number of threads the executor is likely to run
+	int parallelism() {
+		if (executor instanceof ForkJoinPool)
+			return ((ForkJoinPool) executor).getParallelism();
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+}
@@ -0,0 +1,172 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.archetype;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import au.edu.anu.aot.errorMessaging.ErrorMessagable;
+
+/**
+ * <p>
+ * The outcome of a single call to one of the {@code check(...)} methods of
+ * {@link Archetypes}: the errors found, in the order of the archetype
+ * specifications, plus a few counts and the time the check took.
+ * </p>
+ * <p>
+ * Instances are immutable. Since every check returns its own result, a single
+ * {@link Archetypes} instance can serve concurrent checks. In subtree reuse
+ * mode (cf. {@link CheckOptions#withSubtreeReuse(boolean)}), a result also
+ * keeps the state of every node checked, which the next check reads but never
+ * modifies - so a result can serve as the baseline of several checks.
+ * </p>
+ */
+public final class CheckResult {
+
+	private final String archetypeId;
+
+	private final List<ErrorMessagable> errors;
+
+	private final int nErrors;
+
+	private final boolean complete;
+
+	private final int nNodes;
+
+	private final int nCompliantNodes;
+
+	private final long checkTime;
+
+	/** the node results kept for the next check, null if not in subtree reuse mode */
+	private final SubtreeResults subtreeResults;
+
+	/**
+	 * @param archetypeId     the id of the archetype root
+	 * @param errors          the errors found (empty if messages were not kept)
+	 * @param nErrors         the number of errors found
+	 * @param complete        false if the check stopped before the end
+	 * @param nNodes          the number of nodes in the checked tree
+	 * @param nCompliantNodes the number of nodes matching a node specification
+	 * @param checkTime       the duration of the check in nanoseconds
+	 */
+	CheckResult(String archetypeId, List<ErrorMessagable> errors, int nErrors, boolean complete, int nNodes,
+			int nCompliantNodes, long checkTime) {
+		this(archetypeId, errors, nErrors, complete, nNodes, nCompliantNodes, checkTime, null);
+	}
+
+	/**
+	 * @param subtreeResults the node results kept for the next check, null if
+	 *                       none
+	 */
+	CheckResult(String archetypeId, List<ErrorMessagable> errors, int nErrors, boolean complete, int nNodes,
+			int nCompliantNodes, long checkTime, SubtreeResults subtreeResults) {
+		super();
+		this.subtreeResults = subtreeResults;
+		this.archetypeId = archetypeId;
+		this.errors = Collections.unmodifiableList(new ArrayList<>(errors));
+		this.nErrors = nErrors;
+		this.complete = complete;
+		this.nNodes = nNodes;
+		this.nCompliantNodes = nCompliantNodes;
+		this.checkTime = checkTime;
+	}
+
+	/**
+	 * @return the id of the archetype the graph was checked against
+	 */
+	public String archetypeId() {
+		return archetypeId;
+	}
+
+	/**
+	 * @return {@code true} if no error was found
+	 */
+	public boolean isValid() {
+		return nErrors == 0;
+	}
+
+	/**
+	 * @return {@code false} if the check stopped before finding all errors, as
+	 *         set by {@link CheckOptions#withMaxErrors(int)}
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return the (read-only) list of errors, empty if none or if the check was
+	 *         made without messages (cf. {@link CheckOptions#withMessages(boolean)})
+	 */
+	public List<ErrorMessagable> errors() {
+		return errors;
+	}
+
+	/**
+	 * @return the number of errors found
+	 */
+	public int nErrors() {
+		return nErrors;
+	}
+
+	/**
+	 * @return the number of nodes of the checked tree
+	 */
+	public int nNodes() {
+		return nNodes;
+	}
+
+	/**
+	 * @return the number of nodes which matched at least one node specification
+	 *         (a node matching two specifications is counted once)
+	 */
+	public int nCompliantNodes() {
+		return nCompliantNodes;
+	}
+
+	/**
+	 * @param unit the time unit to use
+	 * @return the time spent checking
+	 */
+	public long checkTime(TimeUnit unit) {
+		return unit.convert(checkTime, TimeUnit.NANOSECONDS);
+	}
+
+	// the node results kept for the next check, null if none
+	SubtreeResults subtreeResults() {
+		return subtreeResults;
+	}
+
+	@Override
+	public String toString() {
+		return "check against " + archetypeId + ": " + nErrors + (complete ? "" : "+") + " error(s) in " + nNodes + " nodes ("
+			+ checkTime(TimeUnit.MILLISECONDS) + " ms)";
+	}
+
+}
@@ -0,0 +1,814 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.archetype;
+
+import static au.edu.anu.aot.archetype.Archetypes.*;
+import static au.edu.anu.qgraph.queries.CoreQueries.*;
+import static au.edu.anu.qgraph.queries.base.SequenceQuery.get;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import au.edu.anu.aot.constraints.BatchConstraint;
+import au.edu.anu.aot.constraints.Constraint;
+import au.edu.anu.aot.constraints.ConstraintFactories;
+import au.edu.anu.aot.constraints.ConstraintFactory;
+import au.edu.anu.omhtk.util.IntegerRange;
+import au.edu.anu.qgraph.queries.Queryable;
+import fr.cnrs.iees.omugi.collections.tables.StringTable;
+import fr.cnrs.iees.omugi.graph.TreeNode;
+import fr.cnrs.iees.omugi.graph.impl.SimpleDataTreeNode;
+import fr.cnrs.iees.omugi.io.parsing.impl.NodeReference;
+import fr.cnrs.iees.omugi.graph.property.Property;
+import fr.cnrs.iees.omugi.properties.ReadOnlyPropertyList;
+import fr.cnrs.iees.omhtk.utils.Logging;
+
+/**
+ * <p>
+ * An archetype compiled into a checking plan. All the requirements found in the
+ * {@link NodeSpec}, {@link EdgeSpec}, {@link PropertySpec} and
+ * {@link ConstraintSpec} nodes of an archetype tree are read once, when the
+ * instance is built, and stored as plain fields ({@code isOfClass},
+ * {@code hasId}, {@code multiplicity} ranges, parent references, lists of
+ * children specifications...). {@link Archetypes} can then check any number of
+ * graphs against the same compiled archetype without ever reading the archetype
+ * properties again.
+ * </p>
+ * <p>
+ * Instances are immutable and can be shared. They are obtained from
+ * {@link Archetypes#compile(ArchetypeRootSpec) Archetypes.compile(...)}. Notice
+ * that the compiled form is a snapshot: if the archetype tree is edited after
+ * compilation, it must be compiled again.
+ * </p>
+ * <p>
+ * A compiled archetype can also be saved to, and loaded from, a binary image
+ * (cf. {@link PrecompiledArchetypes}). In this case the archetype tree is only
+ * read when it is first needed, i.e. to report an error.
+ * </p>
+ */
+public final class CompiledArchetype {
+
+	private static Logger log = Logging.getLogger(CompiledArchetype.class);
+	static {
+		log.setLevel(Level.OFF);
+	}
+
+	/** the archetype tree root, null until first needed if loaded from an image */
+	private volatile ArchetypeRootSpec archetype;
+
+	/** where to find the archetype tree if loaded from an image, null otherwise */
+	private final Supplier<ArchetypeRootSpec> archetypeSource;
+
+	private final String archetypeId;
+
+	private final boolean exclusive;
+
+	/** the property names of a ConstraintSpec which are not query parameters */
+	private final Set<String> constraintSpecKeys;
+
+	private final List<NodePlan> nodePlans;
+
+	/** node specs without a required id, by required class */
+	private final Map<String, List<NodePlan>> plansByClass = new HashMap<>();
+
+	/** node specs with a required id, by required class and id */
+	private final Map<String, Map<String, List<NodePlan>>> plansByClassAndId = new HashMap<>();
+
+	/**
+	 * node specs by the parent references found in their hasParent tables: parent
+	 * class first, then parent id. An empty string stands for "any class" or "any
+	 * id", e.g. "Class:" is stored under [Class][""] and ":Id" under [""][Id].
+	 */
+	private final Map<String, Map<String, List<NodePlan>>> plansByParentRef = new HashMap<>();
+
+	/**
+	 * the required classes of all node specs, interned to a dense rank so that
+	 * children can be counted by class in a plain int array
+	 */
+	private final Map<String, Integer> classRanks = new HashMap<>();
+
+	/** the rank of the required class of every node spec, -1 if it has none */
+	private final int[] specClassRanks;
+
+	/** constraint specs with a parameter class which could not be loaded, or
+	 * with parameters rejected by their constraint factory */
+	private final List<ConstraintPlan> unresolvedConstraints;
+
+	/** the node spec owning every batch constraint */
+	private final Map<ConstraintPlan, Integer> batchConstraintOwners = new IdentityHashMap<>();
+
+	/**
+	 * @param archetype          the root of the archetype tree to compile
+	 * @param constraintSpecKeys the property names of a {@link ConstraintSpec}
+	 *                           which are not query parameters
+	 */
+	CompiledArchetype(ArchetypeRootSpec archetype, Set<String> constraintSpecKeys) {
+		this(archetype, null, archetype.id(), Boolean.TRUE.equals(value(archetype, "exclusive")),
+			constraintSpecKeys, compilePlans(archetype, constraintSpecKeys));
+	}
+
+	/**
+	 * @param archetypeSource    supplies the archetype tree root when first needed
+	 * @param archetypeId        the id of the archetype tree root
+	 * @param exclusive          the value of the archetype 'exclusive' property
+	 * @param constraintSpecKeys the property names of a {@link ConstraintSpec}
+	 *                           which are not query parameters
+	 * @param plans              the node specs, read from a precompiled image
+	 */
+	CompiledArchetype(Supplier<ArchetypeRootSpec> archetypeSource, String archetypeId, boolean exclusive,
+			Set<String> constraintSpecKeys, List<NodePlan> plans) {
+		this(null, archetypeSource, archetypeId, exclusive, constraintSpecKeys, plans);
+	}
+
+	private CompiledArchetype(ArchetypeRootSpec archetype, Supplier<ArchetypeRootSpec> archetypeSource,
+			String archetypeId, boolean exclusive, Set<String> constraintSpecKeys, List<NodePlan> plans) {
+		super();
+		this.archetype = archetype;
+		this.archetypeSource = archetypeSource;
+		this.archetypeId = archetypeId;
+		this.exclusive = exclusive;
+		this.constraintSpecKeys = constraintSpecKeys;
+		for (NodePlan plan : plans) {
+			for (NodeRef ref : plan.parentNodeRefs) {
+				List<NodePlan> l = plansByParentRef.computeIfAbsent(ref.className, k -> new HashMap<>())
+					.computeIfAbsent(ref.id, k -> new ArrayList<>());
+				// a spec may list the same parent reference twice
+				if (!l.contains(plan))
+					l.add(plan);
+			}
+			// a spec without class never matches any node
+			if (plan.requiredClass != null) {
+				if (plan.requiredId == null)
+					plansByClass.computeIfAbsent(plan.requiredClass, k -> new ArrayList<>()).add(plan);
+				else
+					plansByClassAndId.computeIfAbsent(plan.requiredClass, k -> new HashMap<>())
+						.computeIfAbsent(plan.requiredId, k -> new ArrayList<>()).add(plan);
+			}
+		}
+		nodePlans = Collections.unmodifiableList(plans);
+		specClassRanks = new int[plans.size()];
+		for (NodePlan plan : plans)
+			specClassRanks[plan.index] = (plan.requiredClass == null) ? -1
+				: classRanks.computeIfAbsent(plan.requiredClass, k -> classRanks.size());
+		List<ConstraintPlan> unresolved = new ArrayList<>();
+		for (NodePlan plan : plans) {
+			List<ConstraintPlan> constraints = new ArrayList<>(plan.constraintPlans);
+			for (EdgePlan edgePlan : plan.edgePlans) {
+				constraints.addAll(edgePlan.constraintPlans);
+				for (PropertyPlan propertyPlan : edgePlan.propertyPlans)
+					constraints.addAll(propertyPlan.constraintPlans);
+			}
+			for (PropertyPlan propertyPlan : plan.propertyPlans)
+				constraints.addAll(propertyPlan.constraintPlans);
+			for (ConstraintPlan constraint : constraints) {
+				if (!constraint.unknownParameters.isEmpty() || (constraint.invalidParameters != null))
+					unresolved.add(constraint);
+				if (constraint.isBatch())
+					batchConstraintOwners.put(constraint, plan.index);
+			}
+		}
+		unresolvedConstraints = Collections.unmodifiableList(unresolved);
+	}
+
+	private static List<NodePlan> compilePlans(ArchetypeRootSpec archetype, Set<String> constraintSpecKeys) {
+		List<NodePlan> plans = new ArrayList<>();
+		for (NodeSpec ns : nodeSpecs(archetype))
+			plans.add(new NodePlan(ns, plans.size(), constraintSpecKeys));
+		return plans;
+	}
+
+	// the node specs of an archetype, in archetype order
+	static List<NodeSpec> nodeSpecs(ArchetypeRootSpec archetype) {
+		List<NodeSpec> result = new ArrayList<>();
+		for (TreeNode tn : archetype.getChildren())
+			if (tn instanceof NodeSpec)
+				result.add((NodeSpec) tn);
+		return result;
+	}
+
+	/**
+	 * @return the root of the archetype tree this plan was compiled from
+	 */
+	public ArchetypeRootSpec archetype() {
+		ArchetypeRootSpec result = archetype;
+		if (result == null)
+			synchronized (this) {
+				if (archetype == null) {
+					archetype = archetypeSource.get();
+					if (archetype == null)
+						throw new IllegalStateException("Archetype tree '" + archetypeId + "' not found");
+				}
+				result = archetype;
+			}
+		return result;
+	}
+
+	/**
+	 * @return the id of the root of the archetype tree this plan was compiled from
+	 */
+	public String archetypeId() {
+		return archetypeId;
+	}
+
+	Set<String> constraintSpecKeys() {
+		return constraintSpecKeys;
+	}
+
+	/**
+	 * @return {@code true} if the archetype accepts no other node than those it
+	 *         specifies
+	 */
+	public boolean isExclusive() {
+		return exclusive;
+	}
+
+	/**
+	 * @return the number of node specifications in this archetype
+	 */
+	public int nNodeSpecs() {
+		return nodePlans.size();
+	}
+
+	List<NodePlan> nodePlans() {
+		return nodePlans;
+	}
+
+	// the node specs without hasId that may match a node of class classId
+	List<NodePlan> nodePlansForClass(String classId) {
+		List<NodePlan> result = plansByClass.get(classId);
+		if (result == null)
+			return Collections.emptyList();
+		return result;
+	}
+
+	// the node specs with hasId that may match a node of class classId and id id
+	List<NodePlan> nodePlansForClassAndId(String classId, String id) {
+		Map<String, List<NodePlan>> byId = plansByClassAndId.get(classId);
+		if (byId != null) {
+			List<NodePlan> result = byId.get(id);
+			if (result != null)
+				return result;
+		}
+		return Collections.emptyList();
+	}
+
+	// the number of distinct classes required by the node specs
+	int nClasses() {
+		return classRanks.size();
+	}
+
+	// the rank of a class required by some node spec, -1 if no spec requires it
+	int classRank(String classId) {
+		Integer rank = classRanks.get(classId);
+		return (rank == null) ? -1 : rank;
+	}
+
+	// the rank of the class required by a node spec, -1 if it has none
+	int classRank(NodePlan plan) {
+		return specClassRanks[plan.index];
+	}
+
+	@Override
+	public String toString() {
+		return "compiled " + archetypeId + " [" + nodePlans.size() + " node specifications]";
+	}
+
+	/**
+	 * Returns the node specs of which the hasParent table references
+	 * {@code parent}, in archetype order. References may be of the form
+	 * {@code Class:}, {@code :Id} or {@code Class:Id}.
+	 * 
+	 * @param parent a node of the tree to check
+	 * @return the specs of the children expected under parent
+	 */
+	List<NodePlan> childPlans(TreeNode parent) {
+		List<NodePlan> anyId = null, withId = null, idOnly = null, anyNode = null;
+		Map<String, List<NodePlan>> byId = plansByParentRef.get(parent.classId());
+		if (byId != null) {
+			anyId = byId.get("");
+			withId = byId.get(parent.id());
+		}
+		byId = plansByParentRef.get("");
+		if (byId != null) {
+			idOnly = byId.get(parent.id());
+			anyNode = byId.get("");
+		}
+		// most of the time, there is a single list of child specs
+		List<NodePlan> single = null;
+		int nLists = 0;
+		for (List<NodePlan> l : Arrays.asList(anyId, withId, idOnly, anyNode))
+			if (l != null) {
+				single = l;
+				nLists++;
+			}
+		if (nLists == 0)
+			return Collections.emptyList();
+		if (nLists == 1)
+			return single;
+		// otherwise merge them in archetype order without duplicates
+		SortedMap<Integer, NodePlan> merged = new TreeMap<>();
+		for (List<NodePlan> l : Arrays.asList(anyId, withId, idOnly, anyNode))
+			if (l != null)
+				for (NodePlan plan : l)
+					merged.put(plan.index, plan);
+		return new ArrayList<>(merged.values());
+	}
+
+	// returns the value of a property, or null if absent
+	private static Object value(SimpleDataTreeNode spec, String key) {
+		if (spec.properties().hasProperty(key))
+			return spec.properties().getPropertyValue(key);
+		return null;
+	}
+
+	/**
+	 * @return the constraint specs of which at least one parameter class could not
+	 *         be loaded, or of which the parameters were rejected by their
+	 *         constraint factory, in archetype order
+	 */
+	List<ConstraintPlan> unresolvedConstraints() {
+		return unresolvedConstraints;
+	}
+
+	/**
+	 * @param batchConstraint a constraint of this archetype for which
+	 *                        {@link ConstraintPlan#isBatch()} is true
+	 * @return the index of the node spec owning the constraint
+	 */
+	int ownerIndex(ConstraintPlan batchConstraint) {
+		return batchConstraintOwners.get(batchConstraint);
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T extends TreeNode> List<T> specChildren(TreeNode spec, Class<T> specClass) {
+		// get the matching label from the archetype factory
+		String label = spec.factory().nodeClassName(specClass);
+		return (List<T>) get(spec, children(), selectZeroOrMany(hasTheLabel(label)));
+	}
+
+	private static List<ConstraintPlan> constraintPlans(TreeNode spec, Set<String> constraintSpecKeys) {
+		List<ConstraintPlan> result = new ArrayList<>();
+		for (ConstraintSpec cs : specChildren(spec, ConstraintSpec.class))
+			result.add(new ConstraintPlan(cs, constraintSpecKeys));
+		return Collections.unmodifiableList(result);
+	}
+
+	private static List<PropertyPlan> propertyPlans(TreeNode spec, Set<String> constraintSpecKeys) {
+		List<PropertyPlan> result = new ArrayList<>();
+		for (PropertySpec ps : specChildren(spec, PropertySpec.class))
+			result.add(new PropertyPlan(ps, constraintSpecKeys));
+		return Collections.unmodifiableList(result);
+	}
+
+	// returns the multiplicity of a spec, or a default if absent
+	private static IntegerRange multiplicity(SimpleDataTreeNode spec, IntegerRange defaultRange) {
+		IntegerRange range = (IntegerRange) value(spec, MULTIPLICITY);
+		return (range == null) ? defaultRange : range;
+	}
+
+	/**
+	 * The requirements of a {@link NodeSpec}.
+	 */
+	static final class NodePlan {
+		/** null until first needed if loaded from an image */
+		private volatile NodeSpec spec;
+		private final Supplier<NodeSpec> specSource;
+		/** the rank of this spec in the archetype */
+		final int index;
+		final String requiredClass;
+		final String requiredId;
+		/** the flattened content of the hasParent table */
+		final String[] parentRefs;
+		/** true if a root node (without parent) matches this spec */
+		final boolean rootAllowed;
+		/** defaults to 0..* */
+		final IntegerRange multiplicity;
+		/** the single-level references of parentRefs, pre-split */
+		final List<NodeRef> parentNodeRefs;
+		/** matches the non-root entries of parentRefs */
+		final NodeMatcher parentMatcher;
+		final List<EdgePlan> edgePlans;
+		final List<PropertyPlan> propertyPlans;
+		final List<ConstraintPlan> constraintPlans;
+
+		private NodePlan(NodeSpec spec, int index, Set<String> constraintSpecKeys) {
+			this(spec, null, index, (String) value(spec, IS_OF_CLASS), (String) value(spec, HAS_ID),
+				flatten((StringTable) value(spec, HAS_PARENT)),
+				multiplicity(spec, new IntegerRange(0, Integer.MAX_VALUE)), edgePlans(spec, constraintSpecKeys),
+				propertyPlans(spec, constraintSpecKeys), constraintPlans(spec, constraintSpecKeys));
+		}
+
+		// a node spec read from a precompiled image (which never has constraints)
+		NodePlan(Supplier<NodeSpec> specSource, int index, String requiredClass, String requiredId,
+				String[] parentRefs, IntegerRange multiplicity, List<EdgePlan> edgePlans,
+				List<PropertyPlan> propertyPlans) {
+			this(null, specSource, index, requiredClass, requiredId, parentRefs, multiplicity, edgePlans,
+				propertyPlans, Collections.emptyList());
+		}
+
+		private NodePlan(NodeSpec spec, Supplier<NodeSpec> specSource, int index, String requiredClass,
+				String requiredId, String[] parentRefs, IntegerRange multiplicity, List<EdgePlan> edgePlans,
+				List<PropertyPlan> propertyPlans, List<ConstraintPlan> constraintPlans) {
+			this.spec = spec;
+			this.specSource = specSource;
+			this.index = index;
+			this.requiredClass = requiredClass;
+			this.requiredId = requiredId;
+			this.parentRefs = parentRefs;
+			// no hasParent table, or an empty entry in it, means a root is allowed
+			boolean root = parentRefs.length == 0;
+			List<NodeRef> nodeRefs = new ArrayList<>();
+			List<String> nonRootRefs = new ArrayList<>();
+			for (String ref : parentRefs)
+				if ((ref == null) || (ref.length() == 0))
+					root = true;
+				else {
+					nonRootRefs.add(ref);
+					NodeRef nodeRef = NodeRef.parse(ref);
+					if (nodeRef != null)
+						nodeRefs.add(nodeRef);
+				}
+			rootAllowed = root;
+			parentNodeRefs = Collections.unmodifiableList(nodeRefs);
+			parentMatcher = new NodeMatcher(nonRootRefs);
+			this.multiplicity = multiplicity;
+			this.edgePlans = edgePlans;
+			this.propertyPlans = propertyPlans;
+			this.constraintPlans = constraintPlans;
+		}
+
+		private static String[] flatten(StringTable parentList) {
+			if (parentList == null)
+				return new String[0];
+			String[] result = new String[parentList.size()];
+			for (int i = 0; i < parentList.size(); i++)
+				result[i] = parentList.getWithFlatIndex(i);
+			return result;
+		}
+
+		private static List<EdgePlan> edgePlans(NodeSpec spec, Set<String> constraintSpecKeys) {
+			List<EdgePlan> edges = new ArrayList<>();
+			for (EdgeSpec es : specChildren(spec, EdgeSpec.class))
+				edges.add(new EdgePlan(es, constraintSpecKeys));
+			return Collections.unmodifiableList(edges);
+		}
+
+		NodeSpec spec() {
+			NodeSpec result = spec;
+			if (result == null)
+				spec = result = specSource.get();
+			return result;
+		}
+
+		/** @return the hasParent table of the spec, only used in error messages */
+		StringTable parentList() {
+			return (StringTable) value(spec(), HAS_PARENT);
+		}
+	}
+
+	/**
+	 * A single-level node reference ({@code Class:Id}, {@code Class:} or
+	 * {@code :Id}) split into its class and id parts. An empty part matches
+	 * anything.
+	 */
+	static final class NodeRef {
+		final String className;
+		final String id;
+
+		private NodeRef(String className, String id) {
+			this.className = className;
+			this.id = id;
+		}
+
+		/**
+		 * @param ref a node reference
+		 * @return the split reference, or null if ref is not a single-level
+		 *         {@code Class:Id} reference
+		 */
+		static NodeRef parse(String ref) {
+			int colon = ref.indexOf(':');
+			if ((colon < 0) || (ref.indexOf(':', colon + 1) >= 0) || (ref.indexOf('/') >= 0))
+				return null;
+			return new NodeRef(ref.substring(0, colon).trim(), ref.substring(colon + 1).trim());
+		}
+	}
+
+	/**
+	 * A list of node references parsed once. Single-level {@code Class:Id},
+	 * {@code Class:} and {@code :Id} references are matched by hash lookups, and
+	 * {@code :} matches any node (as in {@link CompiledArchetype#childPlans(TreeNode)});
+	 * any other reference is passed to {@link NodeReference#matchesRef(TreeNode, String)}.
+	 */
+	static final class NodeMatcher {
+		/** true if there is a ':' reference */
+		private boolean anyNode = false;
+		/** Class: references */
+		private final Set<String> anyIdClasses = new HashSet<>();
+		/** :Id references */
+		private final Set<String> anyClassIds = new HashSet<>();
+		/** Class:Id references */
+		private final Map<String, Set<String>> idsByClass = new HashMap<>();
+		/** the references which are not single-level (or are null) */
+		private final List<String> otherRefs = new ArrayList<>();
+
+		NodeMatcher(List<String> refs) {
+			for (String s : refs) {
+				NodeRef ref = (s == null) ? null : NodeRef.parse(s);
+				if (ref == null)
+					otherRefs.add(s);
+				else if (ref.className.isEmpty() && ref.id.isEmpty())
+					anyNode = true;
+				else if (ref.id.isEmpty())
+					anyIdClasses.add(ref.className);
+				else if (ref.className.isEmpty())
+					anyClassIds.add(ref.id);
+				else
+					idsByClass.computeIfAbsent(ref.className, k -> new HashSet<>()).add(ref.id);
+			}
+		}
+
+		/**
+		 * @param node the node to match
+		 * @return {@code true} if the node matches at least one of the references
+		 */
+		boolean matches(TreeNode node) {
+			if (anyNode || anyIdClasses.contains(node.classId()) || anyClassIds.contains(node.id()))
+				return true;
+			Set<String> ids = idsByClass.get(node.classId());
+			if ((ids != null) && ids.contains(node.id()))
+				return true;
+			for (String ref : otherRefs)
+				if (NodeReference.matchesRef(node, ref))
+					return true;
+			return false;
+		}
+	}
+
+	/**
+	 * The requirements of an {@link EdgeSpec}.
+	 */
+	static final class EdgePlan {
+		/** null until first needed if loaded from an image */
+		private volatile EdgeSpec spec;
+		private final Supplier<EdgeSpec> specSource;
+		/** null if missing (an error) */
+		final String toNodeRef;
+		final NodeMatcher toNodeMatcher;
+		final String edgeLabel;
+		final String edgeId;
+		/** defaults to 1..1 */
+		final IntegerRange multiplicity;
+		final List<PropertyPlan> propertyPlans;
+		final List<ConstraintPlan> constraintPlans;
+
+		private EdgePlan(EdgeSpec spec, Set<String> constraintSpecKeys) {
+			this(spec, null, (String) value(spec, TO_NODE), (String) value(spec, IS_OF_CLASS),
+				(String) value(spec, HAS_ID), multiplicity(spec, new IntegerRange(1, 1)),
+				propertyPlans(spec, constraintSpecKeys), constraintPlans(spec, constraintSpecKeys));
+		}
+
+		// an edge spec read from a precompiled image (which never has constraints)
+		EdgePlan(Supplier<EdgeSpec> specSource, String toNodeRef, String edgeLabel, String edgeId,
+				IntegerRange multiplicity, List<PropertyPlan> propertyPlans) {
+			this(null, specSource, toNodeRef, edgeLabel, edgeId, multiplicity, propertyPlans,
+				Collections.emptyList());
+		}
+
+		private EdgePlan(EdgeSpec spec, Supplier<EdgeSpec> specSource, String toNodeRef, String edgeLabel,
+				String edgeId, IntegerRange multiplicity, List<PropertyPlan> propertyPlans,
+				List<ConstraintPlan> constraintPlans) {
+			this.spec = spec;
+			this.specSource = specSource;
+			this.toNodeRef = toNodeRef;
+			toNodeMatcher = new NodeMatcher(Collections.singletonList(toNodeRef));
+			this.edgeLabel = edgeLabel;
+			this.edgeId = edgeId;
+			this.multiplicity = multiplicity;
+			this.propertyPlans = propertyPlans;
+			this.constraintPlans = constraintPlans;
+		}
+
+		EdgeSpec spec() {
+			EdgeSpec result = spec;
+			if (result == null)
+				spec = result = specSource.get();
+			return result;
+		}
+	}
+
+	/**
+	 * The requirements of a {@link PropertySpec}.
+	 */
+	static final class PropertyPlan {
+		/** null until first needed if loaded from an image */
+		private volatile PropertySpec spec;
+		private final Supplier<PropertySpec> specSource;
+		/** null if missing (an error) */
+		final String key;
+		/** null if missing (an error) */
+		final String typeName;
+		/** true if the multiplicity is missing (an error) */
+		final boolean multiplicityMissing;
+		/** defaults to 1..1 */
+		final IntegerRange multiplicity;
+		final List<ConstraintPlan> constraintPlans;
+
+		private PropertyPlan(PropertySpec spec, Set<String> constraintSpecKeys) {
+			this(spec, null, (String) value(spec, HAS_NAME), (String) value(spec, TYPE),
+				value(spec, MULTIPLICITY) == null, multiplicity(spec, new IntegerRange(1, 1)),
+				constraintPlans(spec, constraintSpecKeys));
+		}
+
+		// a property spec read from a precompiled image (which never has constraints)
+		PropertyPlan(Supplier<PropertySpec> specSource, String key, String typeName, boolean multiplicityMissing,
+				IntegerRange multiplicity) {
+			this(null, specSource, key, typeName, multiplicityMissing, multiplicity, Collections.emptyList());
+		}
+
+		private PropertyPlan(PropertySpec spec, Supplier<PropertySpec> specSource, String key, String typeName,
+				boolean multiplicityMissing, IntegerRange multiplicity, List<ConstraintPlan> constraintPlans) {
+			this.spec = spec;
+			this.specSource = specSource;
+			this.key = key;
+			this.typeName = typeName;
+			this.multiplicityMissing = multiplicityMissing;
+			this.multiplicity = multiplicity;
+			this.constraintPlans = constraintPlans;
+		}
+
+		PropertySpec spec() {
+			PropertySpec result = spec;
+			if (result == null)
+				spec = result = specSource.get();
+			return result;
+		}
+	}
+
+	/**
+	 * The requirements of a {@link ConstraintSpec}: the query class and its
+	 * constructor arguments. If a {@link ConstraintFactory} is registered for the
+	 * query class, the {@link Constraint} it builds is used. Otherwise the query
+	 * constructor is looked up once here, so that checking an item only costs a
+	 * constructor call.
+	 */
+	static final class ConstraintPlan {
+		/** the type of {@link #factory}: (Object[])Queryable */
+		private static final MethodType FACTORY_TYPE = MethodType.methodType(Queryable.class, Object[].class);
+
+		final ConstraintSpec spec;
+		final String queryClassName;
+		/** the properties passed as arguments to the query constructor */
+		final Property[] parameters;
+		/** the values of the parameters, in constructor order */
+		final Object[] arguments;
+		/** the parameters of which the class could not be loaded */
+		final List<Property> unknownParameters;
+		/** the causes of the failures above, in the same order */
+		final List<ClassNotFoundException> unknownParameterCauses;
+		/** the query constructor, null if it could not be found or not needed */
+		final MethodHandle factory;
+		/** the constraint built by a registered factory, null if none */
+		final Constraint constraint;
+		/** why the registered factory rejected the parameters, null if it did not */
+		final IllegalArgumentException invalidParameters;
+		/**
+		 * true once a query of this plan returned something else than a list of
+		 * errors: it is not a sub-archetype, so that its runs need not be tracked
+		 * to detect cycles (queries are assumed to always return the same kind of
+		 * result)
+		 */
+		volatile boolean plainQuery = false;
+
+		private ConstraintPlan(ConstraintSpec spec, Set<String> constraintSpecKeys) {
+			this.spec = spec;
+			ReadOnlyPropertyList queryProps = spec.properties();
+			queryClassName = (String) queryProps.getPropertyValue(CLASS_NAME);
+			List<Property> params = new ArrayList<>();
+			for (String key : queryProps.getKeysAsSet())
+				if (!constraintSpecKeys.contains(key))
+					params.add(queryProps.getProperty(key));
+			parameters = params.toArray(new Property[params.size()]);
+			ConstraintFactory constraintFactory = ConstraintFactories.forClassName(queryClassName);
+			if (constraintFactory != null) {
+				Map<String, Object> values = new LinkedHashMap<>();
+				for (Property p : parameters)
+					values.put(p.getKey(), p.getValue());
+				Constraint built = null;
+				IllegalArgumentException rejected = null;
+				try {
+					built = constraintFactory.newConstraint(Collections.unmodifiableMap(values));
+				} catch (IllegalArgumentException e) {
+					// reported by every check, cf. unresolvedConstraints()
+					rejected = e;
+				}
+				constraint = built;
+				invalidParameters = rejected;
+				arguments = new Object[0];
+				unknownParameters = Collections.emptyList();
+				unknownParameterCauses = Collections.emptyList();
+				factory = null;
+				return;
+			}
+			constraint = null;
+			invalidParameters = null;
+			arguments = new Object[parameters.length];
+			Class<?>[] parameterTypes = new Class<?>[parameters.length];
+			List<Property> unknown = new ArrayList<>();
+			List<ClassNotFoundException> causes = new ArrayList<>();
+			for (int i = 0; i < parameters.length; i++) {
+				try {
+					parameterTypes[i] = Class.forName(parameters[i].getClassName());
+				} catch (ClassNotFoundException e) {
+					unknown.add(parameters[i]);
+					causes.add(e);
+				}
+				arguments[i] = parameters[i].getValue();
+			}
+			unknownParameters = Collections.unmodifiableList(unknown);
+			unknownParameterCauses = Collections.unmodifiableList(causes);
+			factory = unknown.isEmpty() ? findFactory(parameterTypes) : null;
+		}
+
+		/**
+		 * Caution here: since properties can come in any order, the Query constructors
+		 * have to be able to handle changes in argument order. This means there must be
+		 * a constructor for every possible argument order. cf issue #4 in aot. If
+		 * argument order matters a Table should be used as a unique argument.
+		 */
+		private MethodHandle findFactory(Class<?>[] parameterTypes) {
+			try {
+				Class<?> queryClass = Class.forName(queryClassName);
+				MethodHandle constructor = MethodHandles.lookup()
+					.unreflectConstructor(queryClass.getConstructor(parameterTypes));
+				return constructor.asSpreader(Object[].class, parameterTypes.length).asType(FACTORY_TYPE);
+			} catch (ReflectiveOperationException | ClassCastException | WrongMethodTypeException e) {
+				log.severe("Cannot instantiate Query '" + queryClassName + "'");
+				e.printStackTrace();
+				// the constraint will be ignored
+				return null;
+			}
+		}
+
+		/**
+		 * @return {@code true} if the items matched by this spec are checked all
+		 *         together at the end of the tree traversal
+		 */
+		boolean isBatch() {
+			return constraint instanceof BatchConstraint;
+		}
+
+		/**
+		 * @param other another constraint plan
+		 * @return {@code true} if both plans build the same query, even if they
+		 *         belong to different compiled archetypes
+		 */
+		boolean sameQuery(ConstraintPlan other) {
+			return (this == other)
+				|| (queryClassName.equals(other.queryClassName) && Arrays.equals(arguments, other.arguments));
+		}
+
+		/**
+		 * @return a new query instance, or null if no query constructor was found
+		 * @throws Throwable any exception thrown by the query constructor
+		 */
+		Queryable newQuery() throws Throwable {
+			if (factory == null)
+				return null;
+			return (Queryable) factory.invokeExact(arguments);
+		}
+	}
+
+}
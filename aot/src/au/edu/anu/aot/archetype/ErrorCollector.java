@@ -0,0 +1,249 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.archetype;
+
+import java.util.*;
+
+import au.edu.anu.aot.errorMessaging.ErrorListListener;
+import au.edu.anu.aot.errorMessaging.ErrorMessagable;
+import au.edu.anu.aot.errorMessaging.impl.AggregatedErrorMsg;
+import au.edu.anu.aot.errorMessaging.impl.SpecificationErrorMsg;
+import au.edu.anu.aot.errorMessaging.impl.SpecificationErrors;
+
+/**
+ * A buffer for the errors found by a check. Messages are only built when the
+ * check options require them, and errors beyond the maximal number allowed are
+ * ignored. If required, errors with the same type and origin are grouped into a
+ * single {@link AggregatedErrorMsg}. Errors are streamed as soon as they are
+ * found, but groups only once complete (cf. {@link #streamGroups()}).
+ */
+final class ErrorCollector {
+
+	/**
+	 * The error count shared by all the collectors of a (sequential) check.
+	 */
+	static final class Budget {
+		final boolean keepMessages;
+		private final int maxErrors;
+		/** the number of samples by error group, 0 for no grouping */
+		private final int aggregation;
+		/** where to stream errors as they are found, may be null */
+		private final ErrorListListener sink;
+		private int nErrors = 0;
+		private boolean overflow = false;
+
+		Budget(boolean keepMessages, int maxErrors, ErrorListListener sink, int aggregation) {
+			this.keepMessages = keepMessages;
+			this.maxErrors = maxErrors;
+			this.sink = sink;
+			this.aggregation = aggregation;
+		}
+
+		Budget(CheckOptions options) {
+			this(options.keepsMessages(), options.maxErrors(), options.sink(), options.aggregation());
+		}
+
+		/**
+		 * @return {@code true} if no more error can be recorded
+		 */
+		boolean isExhausted() {
+			return nErrors >= maxErrors;
+		}
+
+		/**
+		 * @return {@code true} if an error was ignored because the limit was reached
+		 */
+		boolean overflowed() {
+			return overflow;
+		}
+
+		// counts one more error, if allowed
+		private boolean take() {
+			if (nErrors >= maxErrors) {
+				overflow = true;
+				return false;
+			}
+			nErrors++;
+			return true;
+		}
+
+		// sinks may be shared by the budgets of a parallel check
+		private void stream(ErrorMessagable message) {
+			if (sink != null)
+				synchronized (sink) {
+					sink.onReceiveMsg(message);
+				}
+		}
+	}
+
+	private final Budget budget;
+
+	/** null if messages are not kept */
+	private final List<ErrorMessagable> messages;
+
+	/** the error groups by (error type, origin), null if errors are not grouped */
+	private final Map<List<Object>, AggregatedErrorMsg> groups;
+
+	private int nErrors = 0;
+
+	ErrorCollector(Budget budget) {
+		super();
+		this.budget = budget;
+		messages = budget.keepMessages ? new ArrayList<>() : null;
+		groups = ((messages != null) && (budget.aggregation > 0)) ? new HashMap<>() : null;
+	}
+
+	/**
+	 * @return a collector keeping all messages, for use outside of a check
+	 */
+	static ErrorCollector unlimited() {
+		return new ErrorCollector(new Budget(true, CheckOptions.UNLIMITED, null, 0));
+	}
+
+	/**
+	 * @return {@code true} if messages are built - callers should only compute
+	 *         message arguments in this case
+	 */
+	boolean keepsMessages() {
+		return (messages != null) || (budget.sink != null);
+	}
+
+	/**
+	 * @return {@code true} if no more error can be recorded
+	 */
+	boolean isFull() {
+		return budget.isExhausted();
+	}
+
+	/**
+	 * Records an error, building its message only if needed.
+	 * 
+	 * @param error      the error type
+	 * @param actionMsg  the action message, or null to build it from the type
+	 * @param constraint the constraint message, or null to build it from the type
+	 * @param args       the message arguments
+	 */
+	void report(SpecificationErrors error, String actionMsg, String constraint, Object... args) {
+		if (budget.take()) {
+			nErrors++;
+			if (keepsMessages())
+				record(new SpecificationErrorMsg(error, actionMsg, constraint, args));
+		}
+	}
+
+	/**
+	 * Records an error which message was built elsewhere.
+	 * 
+	 * @param message the error message
+	 */
+	void add(ErrorMessagable message) {
+		if (budget.take()) {
+			nErrors++;
+			record(message);
+		}
+	}
+
+	private void record(ErrorMessagable message) {
+		if ((groups != null) && (message instanceof SpecificationErrorMsg)) {
+			SpecificationErrorMsg msg = (SpecificationErrorMsg) message;
+			List<Object> key = Arrays.asList(msg.error(), msg.origin());
+			AggregatedErrorMsg group = groups.get(key);
+			if (group != null) {
+				group.add(msg);
+				return;
+			}
+			group = new AggregatedErrorMsg(msg, budget.aggregation);
+			groups.put(key, group);
+			// groups keep growing until the end of the check: streamed by streamGroups()
+			messages.add(group);
+			return;
+		}
+		if (messages != null)
+			messages.add(message);
+		budget.stream(message);
+	}
+
+	/**
+	 * Streams the error groups of a complete check, once all the groups of
+	 * parallel tasks were merged into this collector.
+	 */
+	void streamGroups() {
+		if (groups != null)
+			for (ErrorMessagable message : messages)
+				if (message instanceof AggregatedErrorMsg)
+					budget.stream(message);
+	}
+
+	/**
+	 * Appends the errors of another collector, already counted (and, unless
+	 * grouped, streamed) by its own budget.
+	 * 
+	 * @param other the collector to empty into this one
+	 */
+	void appendAll(ErrorCollector other) {
+		nErrors += other.nErrors;
+		if ((messages == null) || (other.messages == null))
+			return;
+		if (groups == null)
+			messages.addAll(other.messages);
+		else
+			for (ErrorMessagable message : other.messages) {
+				// groups split between parallel tasks are merged
+				if (message instanceof AggregatedErrorMsg) {
+					AggregatedErrorMsg group = (AggregatedErrorMsg) message;
+					List<Object> key = Arrays.asList(group.error(), group.origin());
+					AggregatedErrorMsg previous = groups.get(key);
+					if (previous != null) {
+						previous.merge(group);
+						continue;
+					}
+					groups.put(key, group);
+				}
+				messages.add(message);
+			}
+	}
+
+	/**
+	 * @return the number of errors recorded
+	 */
+	int nErrors() {
+		return nErrors;
+	}
+
+	/**
+	 * @return the messages recorded, empty if messages are not kept
+	 */
+	List<ErrorMessagable> messages() {
+		if (messages == null)
+			return Collections.emptyList();
+		return messages;
+	}
+
+}
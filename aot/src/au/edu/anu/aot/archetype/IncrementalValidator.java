@@ -0,0 +1,371 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.archetype;
+
+import java.util.*;
+
+import au.edu.anu.aot.archetype.CompiledArchetype.*;
+import au.edu.anu.aot.errorMessaging.ErrorMessagable;
+import au.edu.anu.aot.errorMessaging.impl.SpecificationErrorMsg;
+import au.edu.anu.aot.errorMessaging.impl.SpecificationErrors;
+import au.edu.anu.omhtk.util.IntegerRange;
+import fr.cnrs.iees.omugi.graph.Tree;
+import fr.cnrs.iees.omugi.graph.TreeNode;
+
+/**
+ * <p>
+ * Keeps the check of a tree against an archetype up to date while the tree is
+ * being edited, without checking the whole tree again after every change.
+ * </p>
+ * <p>
+ * The validator remembers, for every node, the node specifications it matched
+ * and the errors found on it, and maintains the multiplicity counts of every
+ * node specification by parent. The owner of the tree must tell the validator
+ * about every change:
+ * </p>
+ * <ul>
+ * <li>{@link #nodeAdded(TreeNode)} when a node (or a subtree) was attached to
+ * the tree;</li>
+ * <li>{@link #nodeRemoved(TreeNode, TreeNode)} when a node (or a subtree) was
+ * detached from the tree;</li>
+ * <li>{@link #nodeMoved(TreeNode, TreeNode)} when a node changed parent;</li>
+ * <li>{@link #nodeChanged(TreeNode)} when the properties or the out-edges of a
+ * node changed (e.g. when an edge was retargeted, for its start node).</li>
+ * </ul>
+ * <p>
+ * Every notification only re-checks the nodes it concerns (and the parent of a
+ * node added or removed, since its children are counted), so that its cost
+ * does not depend on the size of the tree. {@link #result()} then yields the
+ * same errors as {@link Archetypes#check(fr.cnrs.iees.omugi.graph.NodeSet,
+ * CompiledArchetype) Archetypes.check(...)} on the current tree, but not
+ * necessarily in the same order. This assumes that constraints only depend on
+ * the item they check: a constraint looking at other nodes (e.g. at siblings)
+ * is only re-evaluated when its own node is notified. Batch constraints are
+ * evaluated on all their items every time {@link #result()} is called.
+ * </p>
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ */
+public final class IncrementalValidator {
+
+	private final Archetypes checker;
+
+	private final CompiledArchetype archetype;
+
+	private final Tree<? extends TreeNode> tree;
+
+	/** what is known about every node of the tree, in insertion order */
+	private final Map<TreeNode, NodeState> states = new LinkedHashMap<>();
+
+	/** the nodes with errors of their own */
+	private final Set<TreeNode> nodesWithErrors = new LinkedHashSet<>();
+
+	/** the nodes with items waiting for a batch constraint */
+	private final Set<TreeNode> nodesWithBatchItems = new LinkedHashSet<>();
+
+	/** the number of nodes matching every node spec, by parent */
+	private final List<Map<TreeNode, Integer>> countByParentBySpec;
+
+	/** the (node spec index, parent) pairs of which the count is out of range */
+	private final List<Set<TreeNode>> badCountsBySpec;
+
+	private int nBadCounts = 0;
+
+	private int nRoots = 0;
+
+	private int complyCount = 0;
+
+	// what the validator knows about one node
+	private static class NodeState {
+		final TreeNode parent;
+		final List<NodePlan> plans;
+		final List<List<ErrorMessagable>> errorsByPlan = new ArrayList<>();
+		final Map<ConstraintPlan, List<Object>> batchItems = new LinkedHashMap<>();
+
+		NodeState(TreeNode parent, List<NodePlan> plans) {
+			this.parent = parent;
+			this.plans = plans;
+		}
+
+		boolean hasErrors() {
+			for (List<ErrorMessagable> errors : errorsByPlan)
+				if (!errors.isEmpty())
+					return true;
+			return false;
+		}
+	}
+
+	/**
+	 * Checks the whole tree once and starts tracking it.
+	 * 
+	 * @param checker   the archetype checker
+	 * @param archetype the compiled archetype to check against
+	 * @param tree      the tree to validate
+	 */
+	public IncrementalValidator(Archetypes checker, CompiledArchetype archetype, Tree<? extends TreeNode> tree) {
+		super();
+		this.checker = checker;
+		this.archetype = archetype;
+		this.tree = tree;
+		countByParentBySpec = new ArrayList<>(archetype.nNodeSpecs());
+		badCountsBySpec = new ArrayList<>(archetype.nNodeSpecs());
+		for (int i = 0; i < archetype.nNodeSpecs(); i++) {
+			countByParentBySpec.add(new HashMap<>());
+			badCountsBySpec.add(new LinkedHashSet<>());
+		}
+		for (TreeNode node : tree.nodes())
+			add(node);
+	}
+
+	/**
+	 * To call after a node was attached to the tree. Its descendants are added
+	 * too.
+	 * 
+	 * @param node the new node
+	 */
+	public void nodeAdded(TreeNode node) {
+		addSubtree(node);
+		recheck(node.getParent());
+	}
+
+	/**
+	 * To call after a node was detached from the tree. Its descendants are
+	 * removed too.
+	 * 
+	 * @param node         the removed node
+	 * @param formerParent the parent of the node before removal, null if it was a
+	 *                     root
+	 */
+	public void nodeRemoved(TreeNode node, TreeNode formerParent) {
+		removeSubtree(node);
+		recheck(formerParent);
+	}
+
+	/**
+	 * To call after a node was given another parent.
+	 * 
+	 * @param node         the node which moved
+	 * @param formerParent the parent of the node before the move
+	 */
+	public void nodeMoved(TreeNode node, TreeNode formerParent) {
+		removeSubtree(node);
+		addSubtree(node);
+		recheck(formerParent);
+		recheck(node.getParent());
+	}
+
+	/**
+	 * To call after the properties or out-edges of a node were changed.
+	 * 
+	 * @param node the node which changed
+	 */
+	public void nodeChanged(TreeNode node) {
+		recheck(node);
+	}
+
+	/**
+	 * @return {@code true} if the tree currently complies with the archetype
+	 */
+	public boolean isValid() {
+		if (nodesWithErrors.isEmpty() && nodesWithBatchItems.isEmpty())
+			return (nRoots <= 1) && (nBadCounts == 0) && archetype.unresolvedConstraints().isEmpty()
+				&& !(archetype.isExclusive() && (complyCount != states.size()));
+		return result().isValid();
+	}
+
+	/**
+	 * @return the result of a check of the current tree
+	 */
+	public CheckResult result() {
+		long start = System.nanoTime();
+		List<ErrorMessagable> errors = new ArrayList<>();
+		if (nRoots > 1)
+			errors.add(new SpecificationErrorMsg(SpecificationErrors.TREE_MULTIPLE_ROOTS,
+				null,null, tree,archetype.archetype()));
+		for (ConstraintPlan constraint : archetype.unresolvedConstraints()) {
+			for (int i = 0; i < constraint.unknownParameters.size(); i++)
+				errors.add(new SpecificationErrorMsg(SpecificationErrors.QUERY_PROPERTY_CLASS_UNKNOWN,
+					null,null,constraint.unknownParameterCauses.get(i), constraint.spec,
+					constraint.unknownParameters.get(i)));
+			if (constraint.invalidParameters != null)
+				errors.add(new SpecificationErrorMsg(SpecificationErrors.QUERY_PARAMETERS_INVALID, null, null,
+					constraint.invalidParameters, constraint.spec, constraint.queryClassName));
+		}
+		List<ErrorCollector> errorsBySpec = new ArrayList<>(archetype.nNodeSpecs());
+		for (int i = 0; i < archetype.nNodeSpecs(); i++)
+			errorsBySpec.add(ErrorCollector.unlimited());
+		for (TreeNode node : nodesWithErrors) {
+			NodeState state = states.get(node);
+			for (int i = 0; i < state.plans.size(); i++)
+				for (ErrorMessagable msg : state.errorsByPlan.get(i))
+					errorsBySpec.get(state.plans.get(i).index).add(msg);
+		}
+		Map<ConstraintPlan, List<Object>> batchItems = new LinkedHashMap<>();
+		for (TreeNode node : nodesWithBatchItems)
+			for (Map.Entry<ConstraintPlan, List<Object>> e : states.get(node).batchItems.entrySet())
+				batchItems.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).addAll(e.getValue());
+		for (Map.Entry<ConstraintPlan, List<Object>> e : batchItems.entrySet())
+			checker.checkBatchConstraint(e.getKey(), e.getValue(),
+				errorsBySpec.get(archetype.ownerIndex(e.getKey())));
+		for (NodePlan hasNode : archetype.nodePlans()) {
+			errors.addAll(errorsBySpec.get(hasNode.index).messages());
+			Map<TreeNode, Integer> countByParent = countByParentBySpec.get(hasNode.index);
+			for (TreeNode parent : badCountsBySpec.get(hasNode.index))
+				errors.add(new SpecificationErrorMsg(SpecificationErrors.NODE_RANGE_INCORRECT1, null,null,
+					hasNode.spec(), hasNode.requiredClass, hasNode.parentList(), hasNode.multiplicity,
+					countByParent.get(parent)));
+		}
+		if (archetype.isExclusive() && (complyCount != states.size())) {
+			// in tree node order, as in Archetypes.check(...)
+			List<TreeNode> nonCompliantNodes = new ArrayList<>(states.size() - complyCount);
+			for (TreeNode node : tree.nodes()) {
+				NodeState state = states.get(node);
+				if (state != null && state.plans.isEmpty())
+					nonCompliantNodes.add(node);
+			}
+			errors.add(new SpecificationErrorMsg(SpecificationErrors.NODE_MISSING_SPECIFICATION, null,null,
+				tree, complyCount, nonCompliantNodes));
+		}
+		return new CheckResult(archetype.archetypeId(), errors, errors.size(), true, states.size(), complyCount,
+			System.nanoTime() - start);
+	}
+
+	@Override
+	public String toString() {
+		return "incremental validation of " + states.size() + " nodes against " + archetype.archetypeId();
+	}
+
+	// ------------------------------------------------------------------------
+
+	private void addSubtree(TreeNode node) {
+		Deque<TreeNode> toAdd = new ArrayDeque<>();
+		toAdd.push(node);
+		while (!toAdd.isEmpty()) {
+			TreeNode n = toAdd.pop();
+			if (!states.containsKey(n)) {
+				add(n);
+				for (TreeNode child : n.getChildren())
+					toAdd.push(child);
+			}
+		}
+	}
+
+	private void removeSubtree(TreeNode node) {
+		Deque<TreeNode> toRemove = new ArrayDeque<>();
+		toRemove.push(node);
+		while (!toRemove.isEmpty()) {
+			TreeNode n = toRemove.pop();
+			if (states.containsKey(n)) {
+				remove(n);
+				for (TreeNode child : n.getChildren())
+					toRemove.push(child);
+			}
+		}
+	}
+
+	// matches, checks and counts a node not yet known
+	private void add(TreeNode node) {
+		TreeNode parent = node.getParent();
+		NodeState state = new NodeState(parent, checker.matchingPlans(node, archetype));
+		states.put(node, state);
+		if (parent == null)
+			nRoots++;
+		if (!state.plans.isEmpty())
+			complyCount++;
+		for (NodePlan hasNode : state.plans)
+			if (parent != null)
+				count(hasNode, parent, 1);
+		checkContent(node, state);
+	}
+
+	// forgets a node, using what was known when it was added
+	private void remove(TreeNode node) {
+		NodeState state = states.remove(node);
+		nodesWithErrors.remove(node);
+		nodesWithBatchItems.remove(node);
+		if (state.parent == null)
+			nRoots--;
+		if (!state.plans.isEmpty())
+			complyCount--;
+		for (NodePlan hasNode : state.plans)
+			if (state.parent != null)
+				count(hasNode, state.parent, -1);
+	}
+
+	// checks the node again, without changing the counts
+	private void recheck(TreeNode node) {
+		if (node == null)
+			return;
+		NodeState state = states.get(node);
+		if (state == null)
+			return;
+		state.errorsByPlan.clear();
+		state.batchItems.clear();
+		checkContent(node, state);
+	}
+
+	private void checkContent(TreeNode node, NodeState state) {
+		boolean edgeClassesChecked = false;
+		for (NodePlan hasNode : state.plans) {
+			ErrorCollector errors = ErrorCollector.unlimited();
+			boolean checkEdgeClasses = !hasNode.edgePlans.isEmpty() && !edgeClassesChecked;
+			edgeClassesChecked |= checkEdgeClasses;
+			checker.checkNodeContent(node, hasNode, archetype, errors, state.batchItems, checkEdgeClasses, null);
+			state.errorsByPlan.add(errors.messages());
+		}
+		if (state.hasErrors())
+			nodesWithErrors.add(node);
+		else
+			nodesWithErrors.remove(node);
+		if (state.batchItems.isEmpty())
+			nodesWithBatchItems.remove(node);
+		else
+			nodesWithBatchItems.add(node);
+	}
+
+	// updates the count of nodes matching a spec under a parent
+	private void count(NodePlan hasNode, TreeNode parent, int delta) {
+		Map<TreeNode, Integer> countByParent = countByParentBySpec.get(hasNode.index);
+		Set<TreeNode> badCounts = badCountsBySpec.get(hasNode.index);
+		int count = countByParent.getOrDefault(parent, 0) + delta;
+		if (count == 0)
+			countByParent.remove(parent);
+		else
+			countByParent.put(parent, count);
+		IntegerRange range = hasNode.multiplicity;
+		boolean bad = (count > 0) && !range.inRange(count);
+		if (bad && badCounts.add(parent))
+			nBadCounts++;
+		else if (!bad && badCounts.remove(parent))
+			nBadCounts--;
+	}
+
+}
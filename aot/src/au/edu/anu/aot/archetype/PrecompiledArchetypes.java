@@ -0,0 +1,439 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.archetype;
+
+import static au.edu.anu.aot.archetype.CompiledArchetype.specChildren;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import au.edu.anu.aot.archetype.CompiledArchetype.EdgePlan;
+import au.edu.anu.aot.archetype.CompiledArchetype.NodePlan;
+import au.edu.anu.aot.archetype.CompiledArchetype.PropertyPlan;
+import au.edu.anu.omhtk.util.IntegerRange;
+import fr.cnrs.iees.omhtk.utils.Logging;
+import fr.cnrs.iees.omugi.graph.Tree;
+import fr.cnrs.iees.omugi.graph.TreeNode;
+import fr.cnrs.iees.omugi.io.FileImporter;
+
+/**
+ * <p>
+ * Binary images of {@link CompiledArchetype}s, for processes which cannot
+ * afford to parse and compile archetype text files ({@code .ugt}) at start-up.
+ * </p>
+ * <p>
+ * An image ({@code .aotc} file) holds the checking plan of an archetype: all
+ * strings once in a string table, multiplicity ranges and parent references
+ * already parsed. It starts with a format version and the checksum of the
+ * archetype text file it was compiled from, and ends with a checksum of the
+ * image itself. An image with another version or source checksum, or which is
+ * corrupted, is ignored, and the caller falls back to the text file. Images are
+ * read from a {@link ByteBuffer}, so that image files can be memory-mapped
+ * ({@link #map(Path, Path)}).
+ * </p>
+ * <p>
+ * The archetype tree itself is not part of the image: it is only read from the
+ * text file when an error must be reported. For this reason, archetypes with
+ * {@link ConstraintSpec}s, of which the query arguments may be of any property
+ * type, cannot be precompiled.
+ * </p>
+ * <p>
+ * {@link #main(String[])} precompiles archetype files at build time (cf. target
+ * {@code precompileArchetypes} in {@code scripts/build.xml}). The archetype for
+ * archetypes shipped in the jar is precompiled this way.
+ * </p>
+ */
+public final class PrecompiledArchetypes {
+
+	private static Logger log = Logging.getLogger(PrecompiledArchetypes.class);
+	static {
+		log.setLevel(Level.OFF);
+	}
+
+	/** The extension of archetype image files */
+	public static final String IMAGE_EXTENSION = ".aotc";
+
+	/** The extension of archetype text files */
+	public static final String SOURCE_EXTENSION = ".ugt";
+
+	/** "AOTC" */
+	private static final int MAGIC = 0x414F5443;
+
+	/** To increment every time the image layout changes */
+	static final int FORMAT_VERSION = 2;
+
+	private static final int NULL_STRING = -1;
+
+	private PrecompiledArchetypes() {
+		super();
+	}
+
+	/**
+	 * @param source the content of an archetype text file
+	 * @return the checksum recorded in the images compiled from this file
+	 */
+	public static long checksum(byte[] source) {
+		CRC32 crc = new CRC32();
+		crc.update(source);
+		return crc.getValue();
+	}
+
+	/**
+	 * Writes the image of a compiled archetype.
+	 *
+	 * @param archetype      the compiled archetype
+	 * @param sourceChecksum the {@link #checksum(byte[]) checksum} of the text
+	 *                       file the archetype was read from
+	 * @param out            where to write the image
+	 * @throws IOException              if the image cannot be written
+	 * @throws IllegalArgumentException if the archetype has constraint
+	 *                                  specifications
+	 */
+	public static void write(CompiledArchetype archetype, long sourceChecksum, OutputStream out)
+			throws IOException {
+		// the body refers to strings by their rank in the string table, which comes first
+		Map<String, Integer> strings = new LinkedHashMap<>();
+		ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+		DataOutputStream body = new DataOutputStream(bodyBytes);
+		writeString(body, strings, archetype.archetypeId());
+		body.writeBoolean(archetype.isExclusive());
+		body.writeInt(archetype.constraintSpecKeys().size());
+		for (String key : archetype.constraintSpecKeys())
+			writeString(body, strings, key);
+		body.writeInt(archetype.nodePlans().size());
+		for (NodePlan plan : archetype.nodePlans()) {
+			if (!plan.constraintPlans.isEmpty())
+				throw new IllegalArgumentException("Archetype '" + archetype.archetypeId()
+					+ "' has constraint specifications and cannot be precompiled");
+			writeString(body, strings, plan.requiredClass);
+			writeString(body, strings, plan.requiredId);
+			body.writeInt(plan.parentRefs.length);
+			for (String ref : plan.parentRefs)
+				writeString(body, strings, ref);
+			writeRange(body, plan.multiplicity);
+			body.writeInt(plan.edgePlans.size());
+			for (EdgePlan edgePlan : plan.edgePlans) {
+				if (!edgePlan.constraintPlans.isEmpty())
+					throw new IllegalArgumentException("Archetype '" + archetype.archetypeId()
+						+ "' has constraint specifications and cannot be precompiled");
+				writeString(body, strings, edgePlan.toNodeRef);
+				writeString(body, strings, edgePlan.edgeLabel);
+				writeString(body, strings, edgePlan.edgeId);
+				writeRange(body, edgePlan.multiplicity);
+				writeProperties(body, strings, edgePlan.propertyPlans, archetype);
+			}
+			writeProperties(body, strings, plan.propertyPlans, archetype);
+		}
+		body.flush();
+		CheckedOutputStream checkedOut = new CheckedOutputStream(out, new CRC32());
+		DataOutputStream image = new DataOutputStream(checkedOut);
+		image.writeInt(MAGIC);
+		image.writeInt(FORMAT_VERSION);
+		image.writeLong(sourceChecksum);
+		image.writeInt(strings.size());
+		for (String s : strings.keySet()) {
+			byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+			image.writeInt(utf8.length);
+			image.write(utf8);
+		}
+		bodyBytes.writeTo(image);
+		image.flush();
+		// the checksum of all the above comes last
+		DataOutputStream trailer = new DataOutputStream(out);
+		trailer.writeLong(checkedOut.getChecksum().getValue());
+		trailer.flush();
+	}
+
+	private static void writeProperties(DataOutputStream body, Map<String, Integer> strings,
+			List<PropertyPlan> propertyPlans, CompiledArchetype archetype) throws IOException {
+		body.writeInt(propertyPlans.size());
+		for (PropertyPlan propertyPlan : propertyPlans) {
+			if (!propertyPlan.constraintPlans.isEmpty())
+				throw new IllegalArgumentException("Archetype '" + archetype.archetypeId()
+					+ "' has constraint specifications and cannot be precompiled");
+			writeString(body, strings, propertyPlan.key);
+			writeString(body, strings, propertyPlan.typeName);
+			body.writeBoolean(propertyPlan.multiplicityMissing);
+			writeRange(body, propertyPlan.multiplicity);
+		}
+	}
+
+	private static void writeString(DataOutputStream body, Map<String, Integer> strings, String s)
+			throws IOException {
+		if (s == null)
+			body.writeInt(NULL_STRING);
+		else
+			body.writeInt(strings.computeIfAbsent(s, k -> strings.size()));
+	}
+
+	private static void writeRange(DataOutputStream body, IntegerRange range) throws IOException {
+		body.writeInt(range.getFirst());
+		body.writeInt(range.getLast());
+	}
+
+	/**
+	 * Reads the image of a compiled archetype.
+	 *
+	 * @param image          the image, from its current position to its limit
+	 * @param sourceChecksum the {@link #checksum(byte[]) checksum} of the current
+	 *                       archetype text file
+	 * @param source         supplies the archetype tree read from the text file,
+	 *                       only called if an error must be reported
+	 * @return the compiled archetype, or null if the image is not of the current
+	 *         format, is corrupted or was compiled from another version of the
+	 *         text file
+	 */
+	public static CompiledArchetype read(ByteBuffer image, long sourceChecksum,
+			Supplier<ArchetypeRootSpec> source) {
+		int start = image.position();
+		try {
+			if ((image.getInt() != MAGIC) || (image.getInt() != FORMAT_VERSION)) {
+				log.info("Archetype image of unknown format - ignored");
+				return null;
+			}
+			if (!hasValidChecksum(image, start)) {
+				log.warning("Corrupted archetype image - ignored");
+				return null;
+			}
+			if (image.getLong() != sourceChecksum) {
+				log.info("Archetype image out of date - ignored");
+				return null;
+			}
+			String[] strings = new String[image.getInt()];
+			for (int i = 0; i < strings.length; i++) {
+				byte[] utf8 = new byte[image.getInt()];
+				image.get(utf8);
+				strings[i] = new String(utf8, StandardCharsets.UTF_8);
+			}
+			Lazy<ArchetypeRootSpec> root = new Lazy<>(source);
+			String archetypeId = readString(image, strings);
+			boolean exclusive = image.get() != 0;
+			Set<String> constraintSpecKeys = new HashSet<>();
+			for (int i = image.getInt(); i > 0; i--)
+				constraintSpecKeys.add(readString(image, strings));
+			int nNodes = image.getInt();
+			List<NodePlan> plans = new ArrayList<>(nNodes);
+			for (int i = 0; i < nNodes; i++) {
+				final int rank = i;
+				Lazy<NodeSpec> nodeSpec = new Lazy<>(() -> CompiledArchetype.nodeSpecs(root.get()).get(rank));
+				String requiredClass = readString(image, strings);
+				String requiredId = readString(image, strings);
+				String[] parentRefs = new String[image.getInt()];
+				for (int j = 0; j < parentRefs.length; j++)
+					parentRefs[j] = readString(image, strings);
+				IntegerRange multiplicity = readRange(image);
+				int nEdges = image.getInt();
+				List<EdgePlan> edgePlans = new ArrayList<>(nEdges);
+				for (int j = 0; j < nEdges; j++) {
+					final int edgeRank = j;
+					Lazy<EdgeSpec> edgeSpec = new Lazy<>(
+						() -> specChildren(nodeSpec.get(), EdgeSpec.class).get(edgeRank));
+					String toNodeRef = readString(image, strings);
+					String edgeLabel = readString(image, strings);
+					String edgeId = readString(image, strings);
+					IntegerRange edgeMultiplicity = readRange(image);
+					edgePlans.add(new EdgePlan(edgeSpec, toNodeRef, edgeLabel, edgeId, edgeMultiplicity,
+						readProperties(image, strings, edgeSpec)));
+				}
+				plans.add(new NodePlan(nodeSpec, rank, requiredClass, requiredId, parentRefs, multiplicity,
+					Collections.unmodifiableList(edgePlans), readProperties(image, strings, nodeSpec)));
+			}
+			return new CompiledArchetype(root, archetypeId, exclusive,
+				Collections.unmodifiableSet(constraintSpecKeys), plans);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException
+				| IllegalArgumentException e) {
+			log.warning("Corrupted archetype image - ignored");
+			return null;
+		}
+	}
+
+	// true if the last 8 bytes of the image are the checksum of all the others
+	private static boolean hasValidChecksum(ByteBuffer image, int start) {
+		int end = image.limit() - Long.BYTES;
+		if (end < image.position())
+			return false;
+		ByteBuffer content = image.duplicate();
+		content.limit(end);
+		content.position(start);
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		return crc.getValue() == image.getLong(end);
+	}
+
+	private static List<PropertyPlan> readProperties(ByteBuffer image, String[] strings,
+			Supplier<? extends TreeNode> ownerSpec) {
+		int nProperties = image.getInt();
+		List<PropertyPlan> result = new ArrayList<>(nProperties);
+		for (int i = 0; i < nProperties; i++) {
+			final int rank = i;
+			String key = readString(image, strings);
+			String typeName = readString(image, strings);
+			boolean multiplicityMissing = image.get() != 0;
+			result.add(new PropertyPlan(
+				new Lazy<>(() -> specChildren(ownerSpec.get(), PropertySpec.class).get(rank)),
+				key, typeName, multiplicityMissing, readRange(image)));
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	private static String readString(ByteBuffer image, String[] strings) {
+		int rank = image.getInt();
+		return (rank == NULL_STRING) ? null : strings[rank];
+	}
+
+	private static IntegerRange readRange(ByteBuffer image) {
+		int first = image.getInt();
+		return new IntegerRange(first, image.getInt());
+	}
+
+	/**
+	 * Memory-maps an archetype image file.
+	 *
+	 * @param image  the image file
+	 * @param source the archetype text file the image was compiled from
+	 * @return the compiled archetype, or null if the image is out of date
+	 * @throws IOException if one of the files cannot be read
+	 */
+	@SuppressWarnings("unchecked")
+	public static CompiledArchetype map(Path image, Path source) throws IOException {
+		long checksum = checksum(Files.readAllBytes(source));
+		try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+			// the mapping remains valid after the channel is closed
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return read(buffer, checksum, () -> {
+				Tree<? extends TreeNode> tree = (Tree<? extends TreeNode>) new FileImporter(source.toFile())
+					.getGraph();
+				return (tree == null) ? null : (ArchetypeRootSpec) tree.root();
+			});
+		}
+	}
+
+	/**
+	 * Reads the image of an archetype text file found in the same package as a
+	 * class, if any.
+	 *
+	 * @param owner      the class of which the package holds both files
+	 * @param sourceName the name of the archetype text file
+	 * @param source     supplies the archetype tree read from the text file
+	 * @return the compiled archetype, or null if there is no up to date image
+	 */
+	static CompiledArchetype readResource(Class<?> owner, String sourceName, Supplier<ArchetypeRootSpec> source) {
+		String imageName = sourceName.substring(0, sourceName.length() - SOURCE_EXTENSION.length())
+			+ IMAGE_EXTENSION;
+		try (InputStream sourceIn = owner.getResourceAsStream(sourceName);
+				InputStream imageIn = owner.getResourceAsStream(imageName)) {
+			if ((sourceIn == null) || (imageIn == null))
+				return null;
+			return read(ByteBuffer.wrap(imageIn.readAllBytes()), checksum(sourceIn.readAllBytes()), source);
+		} catch (IOException e) {
+			log.warning("Archetype image '" + imageName + "' cannot be read - ignored");
+			return null;
+		}
+	}
+
+	/**
+	 * Precompiles archetype text files.
+	 *
+	 * @param args the directory where to write the images, followed by the
+	 *             archetype text files to precompile
+	 * @throws IOException if a file cannot be read or written
+	 */
+	@SuppressWarnings("unchecked")
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: PrecompiledArchetypes <output directory> <archetype file>...");
+			System.exit(1);
+		}
+		File outDir = new File(args[0]);
+		Archetypes checker = new Archetypes();
+		for (int i = 1; i < args.length; i++) {
+			File sourceFile = new File(args[i]);
+			Tree<? extends TreeNode> tree = (Tree<? extends TreeNode>) new FileImporter(sourceFile).getGraph();
+			if ((tree == null) || !(tree.root() instanceof ArchetypeRootSpec)) {
+				System.err.println(sourceFile + ": not an archetype - skipped");
+				continue;
+			}
+			String name = sourceFile.getName();
+			if (name.endsWith(SOURCE_EXTENSION))
+				name = name.substring(0, name.length() - SOURCE_EXTENSION.length());
+			ByteArrayOutputStream image = new ByteArrayOutputStream();
+			try {
+				write(checker.compile((ArchetypeRootSpec) tree.root()),
+					checksum(Files.readAllBytes(sourceFile.toPath())), image);
+			} catch (IllegalArgumentException e) {
+				System.err.println(sourceFile + ": " + e.getMessage() + " - skipped");
+				continue;
+			}
+			Path imageFile = outDir.toPath().resolve(name + IMAGE_EXTENSION);
+			Files.createDirectories(outDir.toPath());
+			Files.write(imageFile, image.toByteArray());
+			System.out.println(sourceFile + " -> " + imageFile);
+		}
+	}
+
+	/**
+	 * A value obtained from a supplier when first needed, then kept.
+	 */
+	private static final class Lazy<T> implements Supplier<T> {
+		private Supplier<? extends T> source;
+		private T value;
+
+		Lazy(Supplier<? extends T> source) {
+			this.source = source;
+		}
+
+		@Override
+		public synchronized T get() {
+			if (source != null) {
+				value = source.get();
+				source = null;
+			}
+			return value;
+		}
+	}
+
+}
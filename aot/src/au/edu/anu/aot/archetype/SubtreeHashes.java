@@ -0,0 +1,135 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.archetype;
+
+import java.util.*;
+
+import fr.cnrs.iees.omugi.graph.Direction;
+import fr.cnrs.iees.omugi.graph.Edge;
+import fr.cnrs.iees.omugi.graph.Node;
+import fr.cnrs.iees.omugi.graph.ReadOnlyDataHolder;
+import fr.cnrs.iees.omugi.graph.TreeNode;
+import fr.cnrs.iees.omugi.properties.ReadOnlyPropertyList;
+
+/**
+ * Structural 64 bit hashes of subtrees. The hash of a node covers its class,
+ * id, properties (through the text representation of their values) and
+ * out-edges; the hash of a subtree combines the hash of its root with the
+ * hashes of the subtrees of its children, in order (as in a Merkle tree). Two
+ * subtrees with different hashes differ; two subtrees with the same hash are
+ * considered identical.
+ */
+final class SubtreeHashes {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final long GOLDEN = 0x9e3779b97f4a7c15L;
+
+	private SubtreeHashes() {
+		super();
+	}
+
+	// the contribution of the rank-th child subtree to the hash of its parent
+	static long childContribution(long childHash, int rank) {
+		return mix(childHash ^ ((rank + 1) * GOLDEN));
+	}
+
+	// the hash of a subtree, given the hash of its root and the sum of the
+	// contributions of its children
+	static long combine(long nodeHash, long childSum) {
+		return mix(nodeHash + GOLDEN * childSum);
+	}
+
+	/**
+	 * @param node a node
+	 * @return the hash of the class of the node - the sum of those of the
+	 *         children of a node is the same as long as they have the same
+	 *         classes, in any order
+	 */
+	static long classHash(TreeNode node) {
+		return mix(hash(FNV_OFFSET, node.classId()));
+	}
+
+	/**
+	 * @param node a node
+	 * @return the hash of the node alone, without its children
+	 */
+	static long nodeHash(TreeNode node) {
+		long h = FNV_OFFSET;
+		h = hash(h, node.classId());
+		h = hash(h, node.id());
+		if (node instanceof ReadOnlyDataHolder)
+			h = hash(h, ((ReadOnlyDataHolder) node).properties());
+		if (node instanceof Node) {
+			// neither does edge order
+			long edgeSum = 0L;
+			for (Edge edge : ((Node) node).edges(Direction.OUT)) {
+				long e = hash(FNV_OFFSET, edge.classId());
+				e = hash(e, edge.id());
+				e = hash(e, edge.endNode().classId());
+				e = hash(e, edge.endNode().id());
+				if (edge instanceof ReadOnlyDataHolder)
+					e = hash(e, ((ReadOnlyDataHolder) edge).properties());
+				edgeSum += mix(e);
+			}
+			h = (h ^ edgeSum) * FNV_PRIME;
+		}
+		return mix(h);
+	}
+
+	private static long hash(long h, ReadOnlyPropertyList props) {
+		// property order does not matter
+		List<String> keys = new ArrayList<>(props.getKeysAsSet());
+		Collections.sort(keys);
+		for (String key : keys) {
+			Object value = props.getPropertyValue(key);
+			h = hash(h, key);
+			h = hash(h, (value == null) ? null : value.getClass().getName());
+			h = hash(h, (value == null) ? null : value.toString());
+		}
+		return h;
+	}
+
+	// FNV-1a on the chars of s, with a terminator so that ("ab","c") and ("a","bc") differ
+	private static long hash(long h, String s) {
+		if (s != null)
+			for (int i = 0; i < s.length(); i++)
+				h = (h ^ s.charAt(i)) * FNV_PRIME;
+		return (h ^ ((s == null) ? 0x1_0000L : 0x2_0000L)) * FNV_PRIME;
+	}
+
+	// the splitmix64 finaliser
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+}
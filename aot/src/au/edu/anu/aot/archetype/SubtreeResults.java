@@ -0,0 +1,318 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.archetype;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import au.edu.anu.aot.archetype.CompiledArchetype.ConstraintPlan;
+import au.edu.anu.aot.archetype.CompiledArchetype.NodePlan;
+import au.edu.anu.aot.errorMessaging.ErrorMessagable;
+import fr.cnrs.iees.omugi.graph.TreeNode;
+
+/**
+ * The node states of a check in subtree reuse mode (cf.
+ * {@link CheckOptions#withSubtreeReuse(boolean)}), kept in its
+ * {@link CheckResult} for the next check against the same compiled archetype.
+ * The state of a node holds the structural hashes of the node and of its
+ * subtree (cf. {@link SubtreeHashes}), its parent and the result of its check.
+ * States are kept by node (not by content), so that the errors replayed always
+ * refer to the nodes of the tree being checked.
+ * <p>
+ * The result of a node only depends on the node, the classes of its children
+ * and its ancestors (which specs it matches). The next check only computes the
+ * hashes of the nodes it is told changed (all the nodes if it is not told), of
+ * the nodes it does not know, and of the former and current ancestors of these
+ * - the hashes of the other nodes are taken from their state. It then checks a
+ * node again if its hash, parent or children classes changed, or if one of its
+ * ancestors moved, and replays the result of the previous check otherwise.
+ * Constraints are assumed to only depend on the item they check, as in
+ * {@link IncrementalValidator}. Sub-archetypes (constraint queries of which the
+ * result is a list of {@link ErrorMessagable}s) may look at the whole subtree
+ * of their node: the nodes running them are always checked again, but the
+ * sub-archetypes themselves only if the subtree hash of their node changed or
+ * if the node moved.
+ * </p>
+ * <p>
+ * Once the check is over, only the node states are kept, and they are never
+ * modified afterwards.
+ * </p>
+ */
+final class SubtreeResults {
+
+	/**
+	 * The result of the check of one node: the specs it matched, the errors
+	 * found for each of them, its items waiting for batch constraints, and the
+	 * errors found by the sub-archetypes run on it.
+	 */
+	static final class NodeResult {
+		final List<NodePlan> plans = new ArrayList<>(1);
+		final List<List<ErrorMessagable>> errorsByPlan = new ArrayList<>(1);
+		private Map<ConstraintPlan, List<Object>> batchItems = Collections.emptyMap();
+		private Map<ConstraintPlan, List<ErrorMessagable>> subArchetypes = null;
+
+		void add(NodePlan plan, List<ErrorMessagable> errors) {
+			plans.add(plan);
+			errorsByPlan.add(errors.isEmpty() ? Collections.emptyList() : errors);
+		}
+
+		void addBatchItems(Map<ConstraintPlan, List<Object>> items) {
+			if (items.isEmpty())
+				return;
+			if (batchItems.isEmpty())
+				batchItems = new LinkedHashMap<>();
+			for (Map.Entry<ConstraintPlan, List<Object>> e : items.entrySet())
+				batchItems.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).addAll(e.getValue());
+		}
+
+		Map<ConstraintPlan, List<Object>> batchItems() {
+			return batchItems;
+		}
+	}
+
+	/** what is known about a node after a check */
+	private static final class NodeState {
+		final TreeNode parent;
+		final long nodeHash;
+		final long childClassesHash;
+		final long subtreeHash;
+		final NodeResult result;
+
+		NodeState(TreeNode parent, long nodeHash, long childClassesHash, long subtreeHash, NodeResult result) {
+			this.parent = parent;
+			this.nodeHash = nodeHash;
+			this.childClassesHash = childClassesHash;
+			this.subtreeHash = subtreeHash;
+			this.result = result;
+		}
+
+		NodeState with(NodeResult newResult) {
+			return new NodeState(parent, nodeHash, childClassesHash, subtreeHash, newResult);
+		}
+	}
+
+	/** the archetype the tree was checked against */
+	private final CompiledArchetype archetype;
+
+	/** the node states of the previous check, dropped at the end of this one */
+	private Map<TreeNode, NodeState> previous;
+
+	/** the nodes of which the hashes were computed again, with their new hashes */
+	private Map<TreeNode, NodeState> rehashed;
+
+	/** the nodes of which an ancestor moved since the previous check */
+	private Set<TreeNode> moved;
+
+	/** the sub-archetype results of the nodes being checked, by node then by query */
+	private Map<TreeNode, Map<ConstraintPlan, List<ErrorMessagable>>> subArchetypes = Collections
+		.synchronizedMap(new IdentityHashMap<>());
+
+	/** the node states after this check, for the next one */
+	private final Map<TreeNode, NodeState> states;
+
+	/**
+	 * @param archetype the archetype to check against
+	 * @param nodes     the nodes of the tree to check
+	 * @param baseline  the node states of the previous check, null if none -
+	 *                  ignored if it was made against another archetype
+	 * @param changed   the nodes which changed since the previous check, null if
+	 *                  unknown
+	 */
+	SubtreeResults(CompiledArchetype archetype, List<TreeNode> nodes, SubtreeResults baseline,
+			Collection<? extends TreeNode> changed) {
+		super();
+		this.archetype = archetype;
+		states = Collections.synchronizedMap(new IdentityHashMap<>(nodes.size()));
+		if ((baseline != null) && (baseline.archetype == archetype))
+			previous = baseline.states;
+		else {
+			previous = Collections.emptyMap();
+			changed = null;
+		}
+		// the nodes of which the hash must be computed again: those said to have
+		// changed, and those unknown to the previous check
+		Set<TreeNode> seeds = Collections.newSetFromMap(new IdentityHashMap<>());
+		if (changed == null)
+			seeds.addAll(nodes);
+		else {
+			seeds.addAll(changed);
+			for (TreeNode node : nodes)
+				if (!previous.containsKey(node))
+					seeds.add(node);
+		}
+		// their subtree hashes change up to the roots, from their former and
+		// current parents
+		Set<TreeNode> stale = Collections.newSetFromMap(new IdentityHashMap<>());
+		moved = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (TreeNode seed : seeds) {
+			NodeState old = previous.get(seed);
+			if (old != null) {
+				addWithAncestors(old.parent, stale);
+				if ((old.parent != seed.getParent()) && moved.add(seed))
+					addDescendants(seed, moved);
+			}
+			addWithAncestors(seed, stale);
+		}
+		rehashed = rehash(stale, seeds);
+	}
+
+	private static void addWithAncestors(TreeNode node, Set<TreeNode> set) {
+		while ((node != null) && set.add(node))
+			node = node.getParent();
+	}
+
+	private static void addDescendants(TreeNode node, Set<TreeNode> set) {
+		Deque<TreeNode> toVisit = new ArrayDeque<>();
+		toVisit.push(node);
+		while (!toVisit.isEmpty())
+			for (TreeNode child : toVisit.pop().getChildren())
+				if (set.add(child))
+					toVisit.push(child);
+	}
+
+	// computes the hashes of the stale nodes, children first; only the seeds are
+	// hashed again, the others only combine the subtree hashes of their children
+	private Map<TreeNode, NodeState> rehash(Set<TreeNode> stale, Set<TreeNode> seeds) {
+		// the stale nodes in pre-order, from the topmost ones
+		List<TreeNode> order = new ArrayList<>(stale.size());
+		Deque<TreeNode> toVisit = new ArrayDeque<>();
+		for (TreeNode node : stale)
+			if (!stale.contains(node.getParent()))
+				toVisit.push(node);
+		while (!toVisit.isEmpty()) {
+			TreeNode node = toVisit.pop();
+			order.add(node);
+			for (TreeNode child : node.getChildren())
+				if (stale.contains(child))
+					toVisit.push(child);
+		}
+		Map<TreeNode, NodeState> result = new IdentityHashMap<>(order.size());
+		for (int i = order.size() - 1; i >= 0; i--) {
+			TreeNode node = order.get(i);
+			NodeState old = previous.get(node);
+			long nodeHash = (seeds.contains(node) || (old == null)) ? SubtreeHashes.nodeHash(node) : old.nodeHash;
+			long childSum = 0L;
+			long childClassesHash = 0L;
+			int rank = 0;
+			for (TreeNode child : node.getChildren()) {
+				NodeState state = result.get(child);
+				if (state == null)
+					state = previous.get(child);
+				// only children of nodes out of the tree can be unknown
+				long childHash = (state == null) ? 0L : state.subtreeHash;
+				childSum += SubtreeHashes.childContribution(childHash, rank++);
+				childClassesHash += SubtreeHashes.classHash(child);
+			}
+			result.put(node, new NodeState(node.getParent(), nodeHash, childClassesHash,
+				SubtreeHashes.combine(nodeHash, childSum), null));
+		}
+		return result;
+	}
+
+	// the state of a node in this check, without result
+	private NodeState current(TreeNode node) {
+		NodeState state = rehashed.get(node);
+		return (state != null) ? state : previous.get(node);
+	}
+
+	/**
+	 * @param node a node of the tree to check
+	 * @return the result of the previous check for this node, null if it must be
+	 *         checked again
+	 */
+	NodeResult previous(TreeNode node) {
+		NodeState old = previous.get(node);
+		if ((old == null) || (old.result == null) || (old.result.subArchetypes != null) || moved.contains(node))
+			return null;
+		NodeState now = rehashed.get(node);
+		if (now == null)
+			states.put(node, old);
+		else if ((now.parent == old.parent) && (now.nodeHash == old.nodeHash)
+				&& (now.childClassesHash == old.childClassesHash))
+			states.put(node, now.with(old.result));
+		else
+			return null;
+		return old.result;
+	}
+
+	/**
+	 * Records the result of the check of a node, with the results of the
+	 * sub-archetypes run on it.
+	 */
+	void record(TreeNode node, NodeResult result) {
+		NodeState now = current(node);
+		if (now == null)
+			return;
+		result.subArchetypes = subArchetypes.remove(node);
+		states.put(node, now.with(result));
+	}
+
+	/**
+	 * @param query a sub-archetype query
+	 * @param node  a node of the tree to check
+	 * @return the errors found by the sub-archetype on this node in the previous
+	 *         check, null if unknown or if the node subtree changed or the node
+	 *         moved since
+	 */
+	List<ErrorMessagable> subArchetypeErrors(ConstraintPlan query, TreeNode node) {
+		NodeState old = previous.get(node);
+		if ((old == null) || (old.result == null) || (old.result.subArchetypes == null) || moved.contains(node))
+			return null;
+		NodeState now = current(node);
+		if ((now.subtreeHash != old.subtreeHash) || (now.parent != old.parent))
+			return null;
+		List<ErrorMessagable> errors = old.result.subArchetypes.get(query);
+		if (errors != null)
+			keep(query, node, errors);
+		return errors;
+	}
+
+	/**
+	 * Records the errors found by a sub-archetype run on a node.
+	 */
+	void recordSubArchetype(ConstraintPlan query, TreeNode node, List<ErrorMessagable> errors) {
+		keep(query, node, Collections.unmodifiableList(errors));
+	}
+
+	private void keep(ConstraintPlan query, TreeNode node, List<ErrorMessagable> errors) {
+		subArchetypes.computeIfAbsent(node, k -> new ConcurrentHashMap<>()).put(query, errors);
+	}
+
+	/**
+	 * Ends the check: only the node states are kept.
+	 */
+	void finish() {
+		previous = Collections.emptyMap();
+		rehashed = Collections.emptyMap();
+		moved = Collections.emptySet();
+		subArchetypes = Collections.emptyMap();
+	}
+
+}
@@ -0,0 +1,67 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.constraints;
+
+import java.util.List;
+
+/**
+ * <p>
+ * A {@link Constraint} evaluated on all the items matched by its specification
+ * in a single call, e.g. to compare items with each other using an index built
+ * once rather than by scanning the tree for every item.
+ * </p>
+ * <p>
+ * When checking a tree, items are collected during the traversal and
+ * {@link #checkAll(List) checkAll(...)} is called once at the end. The
+ * resulting errors are reported after all the other errors found for the node
+ * specification owning the constraint.
+ * </p>
+ */
+public interface BatchConstraint extends Constraint {
+
+	/**
+	 * Check all the items matched by a specification.
+	 * 
+	 * @param items the nodes, edges or properties to check, in tree order
+	 * @return a list of the same size as {@code items}, holding for every item
+	 *         what {@link Constraint#check(Object) check(item)} would return
+	 */
+	public List<String[]> checkAll(List<?> items);
+
+	/**
+	 * Check a single item. The default implementation calls
+	 * {@link #checkAll(List) checkAll(...)} with a one-element list.
+	 */
+	@Override
+	public default String[] check(Object item) {
+		return checkAll(List.of(item)).get(0);
+	}
+
+}
@@ -0,0 +1,57 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.constraints;
+
+/**
+ * <p>
+ * A check applied to the items (nodes, edges or properties) matching a
+ * {@code mustSatisfyQuery} specification.
+ * </p>
+ * <p>
+ * Instances are created once per specification by a {@link ConstraintFactory}
+ * and then used for every item to check, possibly by many threads at the same
+ * time: implementations must be stateless (or at least thread-safe).
+ * </p>
+ */
+@FunctionalInterface
+public interface Constraint {
+
+	/**
+	 * Check an item.
+	 * 
+	 * @param item the node, edge or property to check
+	 * @return {@code null} if the item satisfies the constraint, otherwise a
+	 *         two-element array: the action to undertake to fix the problem, and
+	 *         the description of the problem (as returned by the methods of
+	 *         {@link au.edu.anu.aot.TextTranslations})
+	 */
+	public String[] check(Object item);
+
+}
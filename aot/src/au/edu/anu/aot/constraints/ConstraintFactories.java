@@ -0,0 +1,66 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.constraints;
+
+import java.util.*;
+
+/**
+ * The {@link ConstraintFactory} services available on the class path, loaded
+ * once on first use.
+ */
+public final class ConstraintFactories {
+
+	private ConstraintFactories() {
+		super();
+	}
+
+	// lazy holder: the service loader runs on first access only
+	private static final class Holder {
+		private static final Map<String, ConstraintFactory> FACTORIES;
+		static {
+			Map<String, ConstraintFactory> factories = new HashMap<>();
+			for (ConstraintFactory factory : ServiceLoader.load(ConstraintFactory.class))
+				// first found wins, as for the class path
+				factories.putIfAbsent(factory.constraintClassName(), factory);
+			FACTORIES = Collections.unmodifiableMap(factories);
+		}
+	}
+
+	/**
+	 * @param constraintClassName the query class name found in a specification
+	 * @return the factory to use instead of this query class, null if none
+	 */
+	public static ConstraintFactory forClassName(String constraintClassName) {
+		if (constraintClassName == null)
+			return null;
+		return Holder.FACTORIES.get(constraintClassName);
+	}
+
+}
@@ -0,0 +1,61 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.constraints;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * A provider of {@link Constraint}s, found with {@link java.util.ServiceLoader}.
+ * </p>
+ * <p>
+ * A factory stands for the query class which name is given in the
+ * {@code className} property of a {@code mustSatisfyQuery} specification, so
+ * that existing archetypes need not be changed to use it.
+ * </p>
+ */
+public interface ConstraintFactory {
+
+	/**
+	 * @return the fully qualified name of the query class this factory replaces
+	 */
+	public String constraintClassName();
+
+	/**
+	 * Build a constraint from the parameters of a specification. This is called
+	 * once per specification, when an archetype is compiled.
+	 * 
+	 * @param parameters the (read-only) parameter values, by property name
+	 * @return a reusable, thread-safe constraint
+	 * @throws IllegalArgumentException if the parameters are missing or invalid
+	 */
+	public Constraint newConstraint(Map<String, Object> parameters);
+
+}
@@ -0,0 +1,16 @@
+/**
+ * <p>A service provider interface for archetype constraints.</p>
+ * 
+ * <p>A {@link au.edu.anu.aot.constraints.ConstraintFactory} registered with
+ * {@link java.util.ServiceLoader} (i.e. listed in a
+ * {@code META-INF/services/au.edu.anu.aot.constraints.ConstraintFactory} file) is
+ * used instead of the reflective instantiation of a
+ * {@link au.edu.anu.qgraph.queries.Queryable} when checking a
+ * {@code mustSatisfyQuery} specification with a matching {@code className}.
+ * Parameters are passed by name, so that their order in the archetype does not
+ * matter.</p>
+ * 
+ * <p>A constraint which needs to see all the items it checks at once (e.g. to
+ * compare siblings) implements {@link au.edu.anu.aot.constraints.BatchConstraint}.</p>
+ */
+package au.edu.anu.aot.constraints;
@@ -0,0 +1,86 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.errorMessaging;
+
+import au.edu.anu.aot.TextTranslations;
+
+/**
+ * The message standing for the error messages which were not delivered to
+ * listeners because they could not keep up (cf.
+ * {@link ErrorMessageManager.OverflowPolicy#COALESCE}).
+ */
+final class CoalescedErrorsMsg implements ErrorMessagable {
+
+	private final int nErrors;
+
+	CoalescedErrorsMsg(int nErrors) {
+		super();
+		this.nErrors = nErrors;
+	}
+
+	/**
+	 * @return the number of error messages this message stands for
+	 */
+	int nErrors() {
+		return nErrors;
+	}
+
+	@Override
+	public String actionInfo() {
+		return category() + TextTranslations.getERRORS_COALESCED(nErrors)[0];
+	}
+
+	@Override
+	public String detailsInfo() {
+		String[] msgs = TextTranslations.getERRORS_COALESCED(nErrors);
+		return "\nAction: " + msgs[0] + "\nConstraint: " + msgs[1];
+	}
+
+	@Override
+	public String debugInfo() {
+		return detailsInfo() + "\nCategory: " + category() + "\nCategory class: " + errorName();
+	}
+
+	@Override
+	public String category() {
+		return "[Dispatch] ";
+	}
+
+	@Override
+	public String errorName() {
+		return "[ERRORS_COALESCED] ";
+	}
+
+	@Override
+	public String toString() {
+		return actionInfo();
+	}
+
+}
@@ -30,20 +30,65 @@
 
 package au.edu.anu.aot.errorMessaging;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fr.cnrs.iees.omhtk.utils.Logging;
 
 /**
+ * <p>
  * Error message sender. Sends messages to any number of
  * {@link ErrorListListener}s.
+ * </p>
+ * <p>
+ * By default, messages are delivered on the calling thread. In asynchronous
+ * mode ({@link #setAsynchronous(int, OverflowPolicy, Executor)}), calls are
+ * queued in a bounded buffer and delivered in the same order by a
+ * {@link Flow.Subscriber} running on an executor, so that slow listeners do not
+ * slow down checks. When the buffer is full, the {@link OverflowPolicy} decides
+ * what happens to new messages. Calls to {@link #startCheck()} and
+ * {@link #endCheck()} are never dropped, and {@link ErrorListListener#onEndCheck(boolean)}
+ * is always delivered after all the messages dispatched before it.
+ * </p>
  * 
  * @author Ian Davies - 12, 2018
  */
 public class ErrorMessageManager {
 
-	private static List<ErrorListListener> listeners = new ArrayList<>();
+	/**
+	 * What to do with a new message when the asynchronous buffer is full.
+	 */
+	public static enum OverflowPolicy {
+		/** wait until the listeners have made room in the buffer */
+		BLOCK,
+		/** drop the oldest message of the buffer */
+		DROP_OLDEST,
+		/**
+		 * drop the new message, but count it: listeners receive a single message
+		 * telling how many were dropped before the next start or end of check
+		 */
+		COALESCE
+	}
+
+	private static List<ErrorListListener> listeners = new CopyOnWriteArrayList<>();
 
-	private static boolean haveErrors;
+	private static Logger log = Logging.getLogger(ErrorMessageManager.class);
+
+	private static volatile boolean haveErrors;
+
+	/** null in synchronous mode */
+	private static volatile AsyncDispatcher async = null;
 
 	/**
 	 * 
@@ -60,8 +105,7 @@ public class ErrorMessageManager {
 	 */
 	public static void dispatch(ErrorMessagable msg) {
 		haveErrors = true;
-		for (ErrorListListener listener : listeners)
-			listener.onReceiveMsg(msg);
+		deliver(new Event(Event.MESSAGE, msg, false));
 	}
 
 	/**
@@ -70,8 +114,7 @@ public class ErrorMessageManager {
 	 */
 	public static void startCheck() {
 		haveErrors = false;
-		for (ErrorListListener listener : listeners)
-			listener.onStartCheck();
+		deliver(new Event(Event.START, null, false));
 	}
 
 	/**
@@ -83,12 +126,429 @@ public class ErrorMessageManager {
 		listeners.add(listener);
 	}
 
+	/**
+	 * Stop sending messages to a listener.
+	 * 
+	 * @param listener The listener to remove.
+	 */
+	public static void removeListener(ErrorListListener listener) {
+		listeners.remove(listener);
+	}
+
 	/**
 	 * Inform listeners whether or not errors exist.
 	 */
 	public static void endCheck() {
-		for (ErrorListListener listener : listeners)
-			listener.onEndCheck(!haveErrors);
+		deliver(new Event(Event.END, null, !haveErrors));
+	}
+
+	// delivers an event in the current mode - if the mode is being switched, only
+	// once all the events accepted by the previous dispatcher were delivered
+	private static void deliver(Event event) {
+		for (;;) {
+			AsyncDispatcher dispatcher = async;
+			if (dispatcher == null) {
+				for (ErrorListListener listener : listeners)
+					switch (event.kind) {
+					case Event.START:
+						listener.onStartCheck();
+						break;
+					case Event.MESSAGE:
+						listener.onReceiveMsg(event.msg);
+						break;
+					default:
+						listener.onEndCheck(event.valid);
+					}
+				return;
+			}
+			if (dispatcher.publish(event))
+				return;
+			dispatcher.awaitRetired();
+		}
+	}
+
+	/**
+	 * Switch to asynchronous delivery. Listeners are then called on the executor,
+	 * one call at a time. With {@link OverflowPolicy#BLOCK}, listeners must not
+	 * call {@link #dispatch(ErrorMessagable)} themselves and the executor must not
+	 * run tasks on the dispatching thread. If the executor rejects a delivery
+	 * task, delivery happens on the dispatching thread. Calls made while the mode
+	 * is switched are delivered after all the pending ones.
+	 * 
+	 * @param bufferSize the maximal number of messages waiting for delivery
+	 * @param policy     what to do when the buffer is full
+	 * @param executor   the executor delivering messages
+	 */
+	public static synchronized void setAsynchronous(int bufferSize, OverflowPolicy policy, Executor executor) {
+		if (bufferSize < 1)
+			throw new IllegalArgumentException("Buffer size must be at least 1");
+		if ((policy == null) || (executor == null))
+			throw new IllegalArgumentException("Asynchronous dispatch requires a policy and an executor");
+		AsyncDispatcher dispatcher = new AsyncDispatcher(bufferSize, policy, executor);
+		dispatcher.subscribe(new ListenerSubscriber());
+		replace(dispatcher);
+	}
+
+	/**
+	 * Switch to asynchronous delivery on a thread of its own, shared by all the
+	 * calls to this method. Unlike a shared pool, this thread is never needed by
+	 * the dispatching threads, so that {@link OverflowPolicy#BLOCK} cannot
+	 * deadlock even when dispatching from parallel checks.
+	 * 
+	 * @param bufferSize the maximal number of messages waiting for delivery
+	 * @param policy     what to do when the buffer is full
+	 */
+	public static void setAsynchronous(int bufferSize, OverflowPolicy policy) {
+		setAsynchronous(bufferSize, policy, DeliveryThread.EXECUTOR);
+	}
+
+	// the default executor, started on first use - a daemon thread, so that it
+	// does not keep the JVM alive
+	private static final class DeliveryThread {
+		static final Executor EXECUTOR = Executors.newSingleThreadExecutor(task -> {
+			Thread thread = new Thread(task, "ErrorMessageManager delivery");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Switch back to synchronous delivery (the default), after all pending calls
+	 * were delivered.
+	 */
+	public static synchronized void setSynchronous() {
+		replace(null);
+	}
+
+	// switches to another dispatcher (null for synchronous delivery): the
+	// previous one first stops accepting events and delivers those it accepted,
+	// so that calls are delivered in order across the switch
+	private static void replace(AsyncDispatcher next) {
+		AsyncDispatcher previous = async;
+		if (previous != null) {
+			previous.close();
+			previous.awaitIdle(Long.MAX_VALUE);
+		}
+		async = next;
+		if (previous != null)
+			previous.retire();
+	}
+
+	/**
+	 * Wait until all pending calls were delivered to listeners. Returns
+	 * immediately in synchronous mode.
+	 * 
+	 * @param timeout the maximal time to wait
+	 * @param unit    the time unit of the timeout
+	 * @return {@code false} if the timeout elapsed before delivery was complete
+	 */
+	public static boolean awaitDelivery(long timeout, TimeUnit unit) {
+		AsyncDispatcher dispatcher = async;
+		if (dispatcher == null)
+			return true;
+		return dispatcher.awaitIdle(unit.toNanos(timeout));
+	}
+
+	/**
+	 * A listener forwarding to {@link #startCheck()}, {@link #dispatch(ErrorMessagable)}
+	 * and {@link #endCheck()}, so that checks can stream their errors to all the
+	 * listeners of this manager.
+	 * 
+	 * @return the listener
+	 */
+	public static ErrorListListener listener() {
+		return FORWARDER;
+	}
+
+	private static final ErrorListListener FORWARDER = new ErrorListListener() {
+		@Override
+		public void onReceiveMsg(ErrorMessagable msg) {
+			dispatch(msg);
+		}
+
+		@Override
+		public void onStartCheck() {
+			startCheck();
+		}
+
+		@Override
+		public void onEndCheck(boolean valid) {
+			endCheck();
+		}
+	};
+
+	// ------------------------------------------------------------------------
+	// asynchronous dispatch
+
+	// a call to one of the listener methods
+	private static final class Event {
+		static final int START = 0;
+		static final int MESSAGE = 1;
+		static final int END = 2;
+		final int kind;
+		final ErrorMessagable msg;
+		final boolean valid;
+
+		Event(int kind, ErrorMessagable msg, boolean valid) {
+			this.kind = kind;
+			this.msg = msg;
+			this.valid = valid;
+		}
+	}
+
+	// delivers events to all the listeners, asking for one event at a time
+	private static final class ListenerSubscriber implements Flow.Subscriber<Event> {
+		private Flow.Subscription subscription;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(Event event) {
+			for (ErrorListListener listener : listeners)
+				try {
+					switch (event.kind) {
+					case Event.START:
+						listener.onStartCheck();
+						break;
+					case Event.MESSAGE:
+						listener.onReceiveMsg(event.msg);
+						break;
+					default:
+						listener.onEndCheck(event.valid);
+					}
+				} catch (RuntimeException e) {
+					// a faulty listener must not stop delivery to the others
+					log.log(Level.SEVERE, "Error listener " + listener + " failed", e);
+				}
+			subscription.request(1);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			log.log(Level.SEVERE, "Asynchronous error delivery failed", throwable);
+		}
+
+		@Override
+		public void onComplete() {
+		}
+	}
+
+	/**
+	 * A publisher with a bounded buffer for a single subscriber. Events are
+	 * delivered by a single drain task at a time on the executor, hence in
+	 * order. Only messages count in the buffer size: start and end events are
+	 * always accepted.
+	 */
+	private static final class AsyncDispatcher implements Flow.Publisher<Event>, Flow.Subscription {
+		private final int capacity;
+		private final OverflowPolicy policy;
+		private final Executor executor;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition notFull = lock.newCondition();
+		private final Condition idle = lock.newCondition();
+		private final Deque<Event> buffer = new ArrayDeque<>();
+		private Flow.Subscriber<? super Event> subscriber = null;
+		private int nMessages = 0;
+		private int nCoalesced = 0;
+		private long demand = 0;
+		private boolean draining = false;
+		// no more events are accepted once closed
+		private boolean closed = false;
+		// set once the next dispatcher replaced this one
+		private boolean retired = false;
+
+		AsyncDispatcher(int capacity, OverflowPolicy policy, Executor executor) {
+			this.capacity = capacity;
+			this.policy = policy;
+			this.executor = executor;
+		}
+
+		@Override
+		public void subscribe(Flow.Subscriber<? super Event> s) {
+			lock.lock();
+			try {
+				if (subscriber != null) {
+					s.onError(new IllegalStateException("Only one subscriber allowed"));
+					return;
+				}
+				subscriber = s;
+			} finally {
+				lock.unlock();
+			}
+			s.onSubscribe(this);
+		}
+
+		@Override
+		public void request(long n) {
+			lock.lock();
+			try {
+				demand = (demand + n < 0) ? Long.MAX_VALUE : demand + n;
+			} finally {
+				lock.unlock();
+			}
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			lock.lock();
+			try {
+				subscriber = null;
+				buffer.clear();
+				nMessages = 0;
+				notFull.signalAll();
+				idle.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		// returns false if the event was not accepted because this dispatcher is
+		// being replaced
+		boolean publish(Event event) {
+			lock.lock();
+			try {
+				if (closed)
+					return false;
+				if (event.kind == Event.MESSAGE) {
+					if (nMessages >= capacity)
+						switch (policy) {
+						case BLOCK:
+							while ((nMessages >= capacity) && (subscriber != null) && !closed)
+								notFull.awaitUninterruptibly();
+							if (closed)
+								return false;
+							break;
+						case DROP_OLDEST:
+							for (Iterator<Event> it = buffer.iterator(); it.hasNext();)
+								if (it.next().kind == Event.MESSAGE) {
+									it.remove();
+									nMessages--;
+									break;
+								}
+							break;
+						case COALESCE:
+							nCoalesced++;
+							return true;
+						}
+					buffer.add(event);
+					nMessages++;
+				} else {
+					// dropped messages are reported before the next start or end
+					if (nCoalesced > 0) {
+						buffer.add(new Event(Event.MESSAGE, new CoalescedErrorsMsg(nCoalesced), false));
+						nMessages++;
+						nCoalesced = 0;
+					}
+					buffer.add(event);
+				}
+			} finally {
+				lock.unlock();
+			}
+			schedule();
+			return true;
+		}
+
+		// stops accepting events - those already accepted are still delivered
+		void close() {
+			lock.lock();
+			try {
+				closed = true;
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		// tells the callers waiting in awaitRetired() that the next dispatcher is in place
+		void retire() {
+			lock.lock();
+			try {
+				retired = true;
+				idle.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		// waits until the next dispatcher replaced this one
+		void awaitRetired() {
+			lock.lock();
+			try {
+				while (!retired)
+					idle.awaitUninterruptibly();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		// starts a drain task unless one is running or nothing can be delivered
+		private void schedule() {
+			lock.lock();
+			try {
+				if (draining || buffer.isEmpty() || (demand == 0) || (subscriber == null))
+					return;
+				draining = true;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				executor.execute(this::drain);
+			} catch (RuntimeException e) {
+				// e.g. a shut down executor: deliver on this thread rather than never
+				log.log(Level.WARNING, "Asynchronous error delivery rejected, delivering synchronously", e);
+				drain();
+			}
+		}
+
+		private void drain() {
+			for (;;) {
+				Event event;
+				Flow.Subscriber<? super Event> s;
+				lock.lock();
+				try {
+					if (buffer.isEmpty() || (demand == 0) || (subscriber == null)) {
+						draining = false;
+						idle.signalAll();
+						return;
+					}
+					event = buffer.poll();
+					demand--;
+					if (event.kind == Event.MESSAGE) {
+						nMessages--;
+						notFull.signal();
+					}
+					s = subscriber;
+				} finally {
+					lock.unlock();
+				}
+				s.onNext(event);
+			}
+		}
+
+		// waits until the buffer is empty and no drain task is running
+		boolean awaitIdle(long nanos) {
+			lock.lock();
+			try {
+				while ((!buffer.isEmpty() && (subscriber != null)) || draining) {
+					if (nanos <= 0L)
+						return false;
+					try {
+						nanos = idle.awaitNanos(nanos);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
 	}
 
 }
@@ -0,0 +1,167 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.errorMessaging.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import au.edu.anu.aot.errorMessaging.ErrorMessagable;
+
+/**
+ * <p>
+ * A summary of all the errors of the same {@link SpecificationErrors type}
+ * caused by the same specification, e.g. the same missing property on every
+ * node matching a node specification.
+ * </p>
+ * <p>
+ * Only the first few errors are kept as samples; the others are just counted.
+ * Descriptions are those of the first error, with the number of occurrences.
+ * </p>
+ * <p>
+ * Groups are not thread-safe: a check builds each of them on a single thread,
+ * and only publishes them once complete.
+ * </p>
+ */
+public final class AggregatedErrorMsg implements ErrorMessagable {
+
+	private final SpecificationErrors errorType;
+
+	private final Object origin;
+
+	private final int maxSamples;
+
+	private final List<SpecificationErrorMsg> samples = new ArrayList<>();
+
+	private int count = 0;
+
+	/**
+	 * @param first      the first error of the group
+	 * @param maxSamples the maximal number of errors to keep
+	 */
+	public AggregatedErrorMsg(SpecificationErrorMsg first, int maxSamples) {
+		super();
+		errorType = first.error();
+		origin = first.origin();
+		this.maxSamples = Math.max(maxSamples, 1);
+		add(first);
+	}
+
+	/**
+	 * Count one more error of this group.
+	 * 
+	 * @param msg the error
+	 */
+	public void add(SpecificationErrorMsg msg) {
+		count++;
+		if (samples.size() < maxSamples)
+			samples.add(msg);
+	}
+
+	/**
+	 * Append the errors of another group with the same error type and origin.
+	 * 
+	 * @param other the group to merge into this one
+	 */
+	public void merge(AggregatedErrorMsg other) {
+		count += other.count;
+		for (SpecificationErrorMsg msg : other.samples)
+			if (samples.size() < maxSamples)
+				samples.add(msg);
+	}
+
+	/**
+	 * @return The {@link SpecificationErrors specification error}.
+	 */
+	public SpecificationErrors error() {
+		return errorType;
+	}
+
+	/**
+	 * @return the specification the errors originate from (cf.
+	 *         {@link SpecificationErrorMsg#origin()})
+	 */
+	public Object origin() {
+		return origin;
+	}
+
+	/**
+	 * @return the number of errors in this group
+	 */
+	public int count() {
+		return count;
+	}
+
+	/**
+	 * @return the (read-only) first errors of this group
+	 */
+	public List<SpecificationErrorMsg> samples() {
+		return Collections.unmodifiableList(samples);
+	}
+
+	private String occurrences() {
+		return count > 1 ? " [x" + count + "]" : "";
+	}
+
+	@Override
+	public String actionInfo() {
+		return samples.get(0).actionInfo() + occurrences();
+	}
+
+	@Override
+	public String detailsInfo() {
+		return samples.get(0).detailsInfo() + "\nOccurrences: " + count;
+	}
+
+	@Override
+	public String debugInfo() {
+		StringBuilder sb = new StringBuilder(samples.get(0).debugInfo());
+		sb.append("\nOccurrences: ").append(count);
+		for (int i = 1; i < samples.size(); i++)
+			sb.append("\nSample: ").append(samples.get(i).actionInfo());
+		return sb.toString();
+	}
+
+	@Override
+	public String category() {
+		return "[" + errorType.category() + "] ";
+	}
+
+	@Override
+	public String errorName() {
+		return "[" + errorType.name() + "] ";
+	}
+
+	@Override
+	public String toString() {
+		return actionInfo();
+	}
+
+}
@@ -42,6 +42,10 @@ import fr.cnrs.iees.omugi.graph.*;
 /**
  * <p>A class to store error messages from archetype checks.</p>
  * 
+ * <p>Only the error type and its arguments are stored when the error is found.
+ * Every description level ({@link #actionInfo()}, {@link #detailsInfo()},
+ * {@link #debugInfo()}) is rendered the first time it is requested, then kept.</p>
+ * 
  * @author designed by Jacques Gignoux - 6 mai 2019
  * @author made useful by Ian Davies - 30 Nov 2019
  */
@@ -57,6 +61,11 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 
 	private Object[] args;
 
+	// descriptions are rendered on first request only
+	private static final int ACTION = 0;
+	private static final int DETAILS = 1;
+	private static final int DEBUG = 2;
+
 	private String actionInfo;
 
 	private String detailsInfo;
@@ -76,16 +85,15 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 		this.actionMsg = actionMsg;
 		this.constraintMsg = constraintMsg;
 		this.args = args;
-		buildDescriptions();
 	}
 
-//	/**
-//	 * Getter for context-specific arguments.
-//	 * @return
-//	 */
-//	public Object[] args() {
-//		return args;
-//	}
+	/**
+	 * Getter for context-specific arguments.
+	 * @return the arguments passed to the constructor, in the same order
+	 */
+	public Object[] args() {
+		return args;
+	}
 
 //	/**
 //	 * Getter for error type.
@@ -95,7 +103,9 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 //		return errorType;
 //	}
 
-	private void buildDescriptions() {
+	// renders one description level - the messages from TextTranslations are
+	// computed again for every level, as they are needed by all
+	private void buildDescriptions(int level) {
 		switch (errorType) {
 		case TREE_MULTIPLE_ROOTS: {
 			@SuppressWarnings("unchecked")
@@ -110,17 +120,51 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			actionMsg = msgs[0];
 			constraintMsg = msgs[1];
 
-			actionInfo = category() + actionMsg;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-			detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+			if (level == ACTION)
+				actionInfo = category() + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				debugInfo += "\nConstraint Specification: " + constraintSpec;
+			}
+			break;
+		}
+		case QUERY_PARAMETERS_INVALID: {
+			/*- cause, constraintSpec, constraintClass */
+			Exception e = (Exception) args[0];
+			Element constraintSpec = (Element) args[1];
+			String constraintClass = (String) args[2];
+			String[] msgs = TextTranslations.getQUERY_PARAMETERS_INVALID(constraintClass,
+				constraintSpec.toShortString(), e.getMessage());
+			actionMsg = msgs[0];
+			constraintMsg = msgs[1];
 
-			debugInfo = "\nAction: " + actionMsg;
-			debugInfo += "\nConstraint: " + constraintMsg;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
-			debugInfo += "\nConstraint Specification: " + constraintSpec;
+			if (level == ACTION)
+				actionInfo = category() + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				debugInfo += "\nException: " + e;
+				debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+			}
 			break;
 		}
 		case QUERY_PROPERTY_CLASS_UNKNOWN: {
@@ -136,20 +180,25 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			actionMsg = msgs[0];
 			constraintMsg = msgs[1];
 			
-			actionInfo = category() + actionMsg;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-
-			detailsInfo += "\nException message: " + e.getMessage();
-			detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
-
-			debugInfo = "\nAction: " + actionMsg;
-			debugInfo += "\nConstraint: " + constraintMsg;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
-			debugInfo += "\nException: " + e;
-			debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+			if (level == ACTION)
+				actionInfo = category() + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+
+				detailsInfo += "\nException message: " + e.getMessage();
+				detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				debugInfo += "\nException: " + e;
+				debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+			}
 			break;
 		}
 		case ELEMENT_MISSING_PROPERTY_LIST: {
@@ -164,19 +213,24 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			actionMsg = msgs[0];
 			constraintMsg = msgs[1];
 
-			actionInfo = category() + element.toShortString() + ": " + actionMsg;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-			detailsInfo += "\nTarget: " + element.toShortString();
-			detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
-
-			debugInfo = "\nAction: " + actionMsg;
-			debugInfo += "\nConstraint: " + constraintMsg;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
-			debugInfo += "\nTarget: " + element;
-			debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+			if (level == ACTION)
+				actionInfo = category() + element.toShortString() + ": " + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				detailsInfo += "\nTarget: " + element.toShortString();
+				detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				debugInfo += "\nTarget: " + element;
+				debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+			}
 			break;
 		}
 
@@ -186,32 +240,32 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			 * "Expected all nodes to comply (got " + (treeToCheck.nNodes() - complyCount) +
 			 * " nodes which didn't comply)";
 			 */
-			@SuppressWarnings("unchecked")
-			Tree<? extends TreeNode> treeToCheck = (Tree<? extends TreeNode>) args[0];
-			int complyCount = (int) args[1];
 			// The archetype does not really do its job here. More testing required.
+			// the nodes found non compliant when the error was raised - the tree
+			// (args[0]) may have changed since
 			@SuppressWarnings("unchecked")
-			List<TreeNode> compliantNodes = (List<TreeNode>) args[2];
-			List<TreeNode> nonCompliantNodes = new ArrayList<>();
+			List<TreeNode> nonCompliantNodes = (List<TreeNode>) args[2];
 			List<String> ncNames = new ArrayList<>();
-			for (TreeNode node : treeToCheck.nodes())
-				if (!compliantNodes.contains(node)) {
-					nonCompliantNodes.add(node);
-					ncNames.add(node.toShortString());
-				}
+			for (TreeNode node : nonCompliantNodes)
+				ncNames.add(node.toShortString());
 
-			int nMissing = treeToCheck.nNodes() - complyCount;
+			int nMissing = nonCompliantNodes.size();
 			String [] msgs = TextTranslations.getNODE_MISSING_SPECIFICATION(nMissing,ncNames);
 			actionMsg = msgs[0];
 			constraintMsg = msgs[1];
 
-			actionInfo = category() + actionMsg;
+			if (level == ACTION)
+				actionInfo = category() + actionMsg;
 
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+			}
 
-			debugInfo = detailsInfo;
-			debugInfo += "\nCategory class: " + errorType;
+			if (level == DEBUG) {
+				debugInfo = detailsInfo();
+				debugInfo += "\nCategory class: " + errorType;
+			}
 			break;
 		}
 		case PROPERTY_MISSING: {
@@ -226,19 +280,24 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			actionMsg = msgs[0];
 			constraintMsg = msgs[1];
 
-			actionInfo = category() + target.toShortString() + ": " + actionMsg;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-			detailsInfo += "\nTarget: " + target.toShortString();
-			detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
-
-			debugInfo = "\nAction: " + actionMsg;
-			debugInfo += "\nConstraint: " + constraintMsg;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
-			debugInfo += "\nTarget: " + target.toDetailedString();
-			debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+			if (level == ACTION)
+				actionInfo = category() + target.toShortString() + ": " + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				detailsInfo += "\nTarget: " + target.toShortString();
+				detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				debugInfo += "\nTarget: " + target.toDetailedString();
+				debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+			}
 			break;
 		}
 
@@ -255,19 +314,24 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			actionMsg = msgs[0];
 			constraintMsg = msgs[1];
 
-			actionInfo = category() + actionMsg;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-			detailsInfo += "\nCategory: " + category();
-			detailsInfo += "\nTarget(?):" + constraintSpec.toShortString();
-
-			debugInfo = "\nAction: " + actionMsg;
-			debugInfo += "\nConstraint: " + constraintMsg;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
-			debugInfo += "\nTarget(?):" + constraintSpec.toDetailedString();
-			debugInfo += "TODO: Check this when circumstance arises!!";
+			if (level == ACTION)
+				actionInfo = category() + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				detailsInfo += "\nCategory: " + category();
+				detailsInfo += "\nTarget(?):" + constraintSpec.toShortString();
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				debugInfo += "\nTarget(?):" + constraintSpec.toDetailedString();
+				debugInfo += "TODO: Check this when circumstance arises!!";
+			}
 
 			break;
 		}
@@ -282,19 +346,24 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			actionMsg = msg[0];
 			constraintMsg = msg[1];
 
-			actionInfo = category() + target.toShortString() + ": " + actionMsg;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-			detailsInfo += "\nTarget: " + target.toShortString();
-			detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
-
-			debugInfo = "\nAction: " + actionMsg;
-			debugInfo += "\nConstraint: " + constraintMsg;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
-			debugInfo += "\nTarget: " + target.toDetailedString();
-			debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+			if (level == ACTION)
+				actionInfo = category() + target.toShortString() + ": " + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				detailsInfo += "\nTarget: " + target.toShortString();
+				detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				debugInfo += "\nTarget: " + target.toDetailedString();
+				debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+			}
 			break;
 		}
 		case EDGE_QUERY_UNSATISFIED: {
@@ -302,21 +371,26 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			Element edge = (Element) args[0];
 			String queryClass = (String) args[1];
 			Element constraintSpec = (Element) args[2];
-			actionInfo = category() + edge.toShortString() + ": " + actionMsg;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-			detailsInfo += "\nQuery class: " + queryClass;
-			detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
-			detailsInfo += "\nQuery item: " + edge.toShortString();
-
-			debugInfo = "\nAction: " + actionMsg;
-			debugInfo += "\nConstraint: " + constraintMsg;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
-			debugInfo += "\nQuery class: " + queryClass;
-			debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
-			debugInfo += "\nQuery item: " + edge.toDetailedString();
+			if (level == ACTION)
+				actionInfo = category() + edge.toShortString() + ": " + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				detailsInfo += "\nQuery class: " + queryClass;
+				detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+				detailsInfo += "\nQuery item: " + edge.toShortString();
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				debugInfo += "\nQuery class: " + queryClass;
+				debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+				debugInfo += "\nQuery item: " + edge.toDetailedString();
+			}
 
 			break;
 
@@ -327,21 +401,26 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			String queryClass = (String) args[1];
 			Element constraintSpec = (Element) args[2];
 
-			actionInfo = category() + node.toShortString() + ": " + actionMsg;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-			detailsInfo += "\nQuery class: " + queryClass;
-			detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
-			detailsInfo += "\nQuery item: " + node.toShortString();
-
-			debugInfo = "\nAction: " + actionMsg;
-			debugInfo += "\nConstraint: " + constraintMsg;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
-			debugInfo += "\nQuery class: " + queryClass;
-			debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
-			debugInfo += "\nQuery item: " + node.toDetailedString();
+			if (level == ACTION)
+				actionInfo = category() + node.toShortString() + ": " + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				detailsInfo += "\nQuery class: " + queryClass;
+				detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+				detailsInfo += "\nQuery item: " + node.toShortString();
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				debugInfo += "\nQuery class: " + queryClass;
+				debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+				debugInfo += "\nQuery item: " + node.toDetailedString();
+			}
 			break;
 		}
 		case PROPERTY_QUERY_UNSATISFIED: {
@@ -350,21 +429,26 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			String queryClass = (String) args[1];
 			Element constraintSpec = (Element) args[2];
 
-			actionInfo = category() + property.getKey() + ": " + actionMsg;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-			detailsInfo += "\nQuery class: " + queryClass;
-			detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
-			detailsInfo += "\nQuery item: " + property;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-			detailsInfo += "\nQuery class: " + queryClass;
-			detailsInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
-			detailsInfo += "\nQuery item: " + property;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
+			if (level == ACTION)
+				actionInfo = category() + property.getKey() + ": " + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				detailsInfo += "\nQuery class: " + queryClass;
+				detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+				detailsInfo += "\nQuery item: " + property;
+
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				detailsInfo += "\nQuery class: " + queryClass;
+				detailsInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+				detailsInfo += "\nQuery item: " + property;
+			}
+			if (level == DEBUG) {
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+			}
 
 			break;
 		}
@@ -374,21 +458,26 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			String queryClass = (String) args[1];
 			Element constraintSpec = (Element) args[2];
 
-			actionInfo = category() + item + ": " + actionMsg;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-			detailsInfo += "\nQuery class: " + queryClass;
-			detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
-			detailsInfo += "\nQuery item: " + item;
-
-			debugInfo = "\nAction: " + actionMsg;
-			debugInfo += "\nConstraint: " + constraintMsg;
-			debugInfo += "\nQuery class: " + queryClass;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
-			debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
-			debugInfo += "\nQuery item: " + item;
+			if (level == ACTION)
+				actionInfo = category() + item + ": " + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				detailsInfo += "\nQuery class: " + queryClass;
+				detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+				detailsInfo += "\nQuery item: " + item;
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nQuery class: " + queryClass;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+				debugInfo += "\nQuery item: " + item;
+			}
 
 			break;
 		}
@@ -404,19 +493,27 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			actionMsg = msgs[0];
 			constraintMsg = msgs[1];
 			
-			actionInfo = category() + actionMsg;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-			detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
-			detailsInfo += "\nQuery item: " + target.toShortString();
-
-			debugInfo = "\nAction: " + actionMsg;
-			debugInfo += "\nConstraint: " + constraintMsg;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
-			debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
-			debugInfo += "\nQuery item: " + target.toDetailedString();
+			if (level == ACTION)
+				actionInfo = category() + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				// null if no edge spec has the unknown class as label
+				if (constraintSpec != null)
+					detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+				detailsInfo += "\nQuery item: " + target.toShortString();
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				if (constraintSpec != null)
+					debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+				debugInfo += "\nQuery item: " + target.toDetailedString();
+			}
 
 			break;
 		}
@@ -433,19 +530,24 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			actionMsg = msgs[0];
 			constraintMsg = msgs[1];
 
-			actionInfo = category() + actionMsg;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-			detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
-			detailsInfo += "\nQuery item: " + target.toShortString();
-
-			debugInfo = "\nAction: " + actionMsg;
-			debugInfo += "\nConstraint: " + constraintMsg;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
-			debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
-			debugInfo += "\nTarget: " + target.toDetailedString();
+			if (level == ACTION)
+				actionInfo = category() + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+				detailsInfo += "\nQuery item: " + target.toShortString();
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+				debugInfo += "\nTarget: " + target.toDetailedString();
+			}
 			break;
 		}
 		case EDGE_ID_INCORRECT: {
@@ -462,15 +564,20 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			actionMsg = msgs[0];
 			constraintMsg = msgs[1];
 			
-			actionInfo = category() +actionMsg;
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-
-			debugInfo = "\nAction: " + actionMsg;
-			debugInfo += "\nConstraint: " + constraintMsg;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
-			debugInfo += "\nTarget: " + edge.toDetailedString();
+			if (level == ACTION)
+				actionInfo = category() +actionMsg;
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				debugInfo += "\nTarget: " + edge.toDetailedString();
+			}
 			break;
 		}
 		case EDGE_RANGE_INCORRECT: {
@@ -487,19 +594,24 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			actionMsg = msgs[0];
 			constraintMsg = msgs[1];
 			
-			actionInfo = category() + target.toShortString() + ": " + actionMsg;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-			detailsInfo += "\nTarget: " + target.toShortString();
-			detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
-
-			debugInfo = "\nAction: " + actionMsg;
-			debugInfo += "\nConstraint: " + constraintMsg;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
-			debugInfo += "\nTarget: " + target.toDetailedString();
-			debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+			if (level == ACTION)
+				actionInfo = category() + target.toShortString() + ": " + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				detailsInfo += "\nTarget: " + target.toShortString();
+				detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				debugInfo += "\nTarget: " + target.toDetailedString();
+				debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+			}
 			break;
 		}
 //		case code13_PropertyMissing: {
@@ -517,19 +629,24 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			actionMsg = msgs[0];		
 			constraintMsg =msgs[1];
 			
-			actionInfo = category() + actionMsg;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-			detailsInfo += "\nTarget: " + element.toShortString();
-			detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
-
-			debugInfo = "\nAction: " + actionMsg;
-			debugInfo += "\nConstraint: " + constraintMsg;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
-			debugInfo += "\nTarget: " + element.toDetailedString();
-			debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+			if (level == ACTION)
+				actionInfo = category() + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				detailsInfo += "\nTarget: " + element.toShortString();
+				detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				debugInfo += "\nTarget: " + element.toDetailedString();
+				debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+			}
 			break;
 		}
 		case PROPERTY_TYPE_INCORRECT: {
@@ -551,19 +668,24 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 			
 			constraintMsg = msgs[1];
 
-			actionInfo = category() + actionMsg;
-
-			detailsInfo = "\nAction: " + actionMsg;
-			detailsInfo += "\nConstraint: " + constraintMsg;
-			detailsInfo += "\nTarget: " + element.toShortString();
-			detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
-
-			debugInfo = "\nAction: " + actionMsg;
-			debugInfo += "\nConstraint: " + constraintMsg;
-			debugInfo += "\nCategory: " + category();
-			debugInfo += "\nCategory class: " + errorType;
-			debugInfo += "\nTarget: " + element.toDetailedString();
-			debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+			if (level == ACTION)
+				actionInfo = category() + actionMsg;
+
+			if (level == DETAILS) {
+				detailsInfo = "\nAction: " + actionMsg;
+				detailsInfo += "\nConstraint: " + constraintMsg;
+				detailsInfo += "\nTarget: " + element.toShortString();
+				detailsInfo += "\nConstraint Specification: " + constraintSpec.toShortString();
+			}
+
+			if (level == DEBUG) {
+				debugInfo = "\nAction: " + actionMsg;
+				debugInfo += "\nConstraint: " + constraintMsg;
+				debugInfo += "\nCategory: " + category();
+				debugInfo += "\nCategory class: " + errorType;
+				debugInfo += "\nTarget: " + element.toDetailedString();
+				debugInfo += "\nConstraint Specification: " + constraintSpec.toDetailedString();
+			}
 			break;
 		}
 
@@ -576,16 +698,22 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 
 	@Override
 	public String actionInfo() {
+		if (actionInfo == null)
+			buildDescriptions(ACTION);
 		return actionInfo;
 	}
 
 	@Override
 	public String detailsInfo() {
+		if (detailsInfo == null)
+			buildDescriptions(DETAILS);
 		return detailsInfo;
 	}
 
 	@Override
 	public String debugInfo() {
+		if (debugInfo == null)
+			buildDescriptions(DEBUG);
 		return debugInfo;
 	}
 
@@ -606,17 +734,48 @@ public class SpecificationErrorMsg implements ErrorMessagable {
 		return errorType;
 	}
 
+	/**
+	 * The specification which caused this error, used to group similar errors.
+	 * 
+	 * @return the archetype node (for {@code NODE_RANGE_INCORRECT2}, the spec of
+	 *         the children counted; for {@code EDGE_ID_INCORRECT}, the required
+	 *         edge id) the error originates from, null if the error concerns the
+	 *         whole tree
+	 */
+	public Object origin() {
+		switch (errorType) {
+		case NODE_MISSING_SPECIFICATION:
+			return null;
+		case NODE_RANGE_INCORRECT1:
+			return args[0];
+		case NODE_RANGE_INCORRECT2:
+			// the spec of the missing or extra children, not the parent spec
+			return (args.length > 5) ? args[5] : args[1];
+		case EDGE_QUERY_UNSATISFIED:
+		case NODE_QUERY_UNSATISFIED:
+		case PROPERTY_QUERY_UNSATISFIED:
+		case ITEM_QUERY_UNSATISFIED:
+			return args[2];
+		case EDGE_RANGE_INCORRECT:
+			return args[5];
+		default:
+			// TREE_MULTIPLE_ROOTS, QUERY_PROPERTY_CLASS_UNKNOWN, ELEMENT_MISSING_PROPERTY_LIST,
+			// PROPERTY_*, EDGE_CLASS_*, EDGE_ID_INCORRECT
+			return args[1];
+		}
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("actionInfo: ");
-		sb.append(actionInfo);
+		sb.append(actionInfo());
 		sb.append("\n");
 		sb.append("detailsInfo: ");
-		sb.append(detailsInfo);
+		sb.append(detailsInfo());
 		sb.append("\n");
 		sb.append("debugInfo: ");
-		sb.append(debugInfo);
+		sb.append(debugInfo());
 		sb.append("\n");
 		return sb.toString();
 	}
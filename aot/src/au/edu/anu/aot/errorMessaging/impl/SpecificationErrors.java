@@ -45,6 +45,13 @@ public enum SpecificationErrors {
 	 */
 	QUERY_PROPERTY_CLASS_UNKNOWN("Archetype"), //
 
+	/**
+	 * Indicates the parameters of a query were rejected by the constraint factory
+	 * registered for it. This is categorized as an 'Archetype' problem: the
+	 * constraint specification is missing a parameter or gives a wrong value.
+	 */
+	QUERY_PARAMETERS_INVALID("Archetype"), //
+
 	/**
 	 * Indicates that a TreeGraph has more than one root. This can happen during
 	 * editing of a TreeGraph when parent-child relationships are altered.
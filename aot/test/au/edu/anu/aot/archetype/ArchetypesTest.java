@@ -31,15 +31,90 @@ package au.edu.anu.aot.archetype;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
 import org.junit.jupiter.api.Test;
 
+import au.edu.anu.aot.TextTranslations;
+import au.edu.anu.aot.archetype.CompiledArchetype.ConstraintPlan;
+import au.edu.anu.aot.archetype.CompiledArchetype.NodePlan;
+import au.edu.anu.aot.constraints.BatchConstraint;
+import au.edu.anu.aot.constraints.ConstraintFactories;
+import au.edu.anu.aot.constraints.ConstraintFactory;
+import au.edu.anu.aot.errorMessaging.ErrorListListener;
 import au.edu.anu.aot.errorMessaging.ErrorMessagable;
+import au.edu.anu.aot.errorMessaging.ErrorMessageManager;
+import au.edu.anu.aot.errorMessaging.impl.AggregatedErrorMsg;
+import au.edu.anu.aot.errorMessaging.impl.SpecificationErrorMsg;
+import au.edu.anu.aot.errorMessaging.impl.SpecificationErrors;
 import fr.cnrs.iees.omugi.graph.*;
 import fr.cnrs.iees.omugi.io.FileImporter;
 
 class ArchetypesTest {
 
+	/** the archetype for archetypes, which is a valid archetype */
+	private static final File ARCHETYPE_FILE = packageFile("src", "ArchetypeArchetype.ugt");
+
+	/** a small archetype, a tree complying with it and a tree breaking most of its rules */
+	private static final File TEST_ARCHETYPE_FILE = packageFile("test", "TestArchetype.ugt");
+	private static final File VALID_TREE_FILE = packageFile("test", "TestValidTree.ugt");
+	private static final File INVALID_TREE_FILE = packageFile("test", "TestInvalidTree.ugt");
+
+	/** an archetype using the constraints of TestConstraints */
+	private static final File CONSTRAINT_ARCHETYPE_FILE = packageFile("test", "TestConstraintArchetype.ugt");
+	private static final File REPEATED_ERRORS_TREE_FILE = packageFile("test", "TestRepeatedErrorsTree.ugt");
+
+	/** an archetype using faulty constraints of TestConstraints */
+	private static final File FAULTY_CONSTRAINT_ARCHETYPE_FILE = packageFile("test",
+		"TestFaultyConstraintArchetype.ugt");
+
+	/** an archetype using the sub-archetypes of TestConstraints */
+	private static final File SUB_ARCHETYPE_FILE = packageFile("test", "TestSubArchetype.ugt");
+
+	/**
+	 * The errors found in TestInvalidTree.ugt, in the order of the original checker:
+	 * node specs in archetype order, then matching nodes in tree order, then the
+	 * counts by parent.
+	 */
+	private static final List<String> INVALID_TREE_ERRORS = List.of(
+		"PROPERTY_MISSING sys",
+		"NODE_RANGE_INCORRECT2 sys component",
+		"NODE_RANGE_INCORRECT2 sys sensor",
+		// the original checker only found the children of 'Class:' parent references
+		"NODE_RANGE_INCORRECT2 c1 part",
+		"NODE_RANGE_INCORRECT2 c2 gadget",
+		"NODE_RANGE_INCORRECT1 componentSpec",
+		"NODE_RANGE_INCORRECT1 partSpec",
+		"NODE_MISSING_SPECIFICATION");
+
+	// a file of this package, in one of the source folders of the project
+	private static File packageFile(String sourceFolder, String fileName) {
+		return new File(System.getProperty("user.dir") // <home dir>/<eclipse workspace>/<project>
+			+ File.separator + sourceFolder
+			+ File.separator + ArchetypesTest.class.getPackage().getName().replace('.',File.separatorChar)
+			+ File.separator + fileName);
+	}
+
+	// every call returns a new tree, so that tests may edit it
+	@SuppressWarnings("unchecked")
+	private static Tree<? extends TreeNode> importTree(File file) {
+		return (Tree<? extends TreeNode>) new FileImporter(file).getGraph();
+	}
+
 	@Test
 	void testArchetypes() {
 		Archetypes arch = new Archetypes();
@@ -72,6 +147,745 @@ class ArchetypesTest {
 		assertNull(errors);
 	}
 	
+	@Test
+	void testCheckCompiledArchetype() {
+		Archetypes arch = new Archetypes();
+		Tree<? extends TreeNode> graph = importTree(ARCHETYPE_FILE);
+		CompiledArchetype compiled = arch.compile((ArchetypeRootSpec) graph.root());
+		assertNotNull(compiled);
+		// the archetype for archetypes is an archetype and can check itself
+		arch.check(graph, compiled);
+		assertNull(arch.errorList());
+		// a compiled archetype can be reused
+		CheckResult result = arch.check(graph, compiled);
+		assertNull(arch.errorList());
+		assertTrue(result.isValid());
+		assertEquals(0, result.nErrors());
+		assertEquals(graph.nNodes(), result.nNodes());
+		// a validity-only check agrees with the full check
+		CheckResult quick = arch.check(graph, compiled, CheckOptions.validityOnly());
+		assertTrue(quick.isValid());
+		assertTrue(quick.isComplete());
+		assertTrue(arch.isArchetype(graph));
+		assertTrue(arch.isValidArchetype(graph));
+		// streamed checks are wrapped in start/end calls
+		List<String> events = new ArrayList<>();
+		arch.check(graph, compiled, CheckOptions.sequential().streamingTo(new ErrorListListener() {
+			@Override
+			public void onReceiveMsg(ErrorMessagable msg) {
+				events.add("error");
+			}
+			@Override
+			public void onStartCheck() {
+				events.add("start");
+			}
+			@Override
+			public void onEndCheck(boolean valid) {
+				events.add("end " + valid);
+			}
+		}));
+		assertEquals(List.of("start", "end true"), events);
+	}
+
+	@Test
+	void testCheckInvalidTree() {
+		Archetypes arch = new Archetypes();
+		Tree<? extends TreeNode> archetype = importTree(TEST_ARCHETYPE_FILE);
+		assertTrue(arch.isArchetype(archetype));
+		CompiledArchetype compiled = arch.compile((ArchetypeRootSpec) archetype.root());
+		assertTrue(arch.check(importTree(VALID_TREE_FILE), compiled).isValid());
+		Tree<? extends TreeNode> tree = importTree(INVALID_TREE_FILE);
+		CheckResult result = arch.check(tree, compiled);
+		assertEquals(INVALID_TREE_ERRORS, summary(result.errors()));
+		assertEquals(INVALID_TREE_ERRORS.size(), result.nErrors());
+		// all nodes but g1 match a spec
+		assertEquals(tree.nNodes() - 1, result.nCompliantNodes());
+		ErrorMessagable missing = result.errors().get(result.errors().size() - 1);
+		assertTrue(missing.detailsInfo().contains("[" + node(tree, "g1").toShortString() + "]"));
+		// checking against the archetype tree gives the same errors
+		arch.check(tree, archetype);
+		assertEquals(INVALID_TREE_ERRORS, summary(arch.errorList()));
+		// a tree which is not an archetype: isArchetype() leaves the errors available
+		assertFalse(arch.isValidArchetype(tree));
+		assertFalse(arch.isArchetype(tree));
+		assertNotNull(arch.errorList());
+		assertTrue(arch.errorList().iterator().hasNext());
+	}
+
+	@Test
+	void testParallelCheck() {
+		Archetypes arch = new Archetypes();
+		CompiledArchetype compiled = arch.compile((ArchetypeRootSpec) importTree(TEST_ARCHETYPE_FILE).root());
+		Tree<? extends TreeNode> tree = importTree(INVALID_TREE_FILE);
+		CheckResult sequential = arch.check(tree, compiled);
+		// a threshold of 1 splits even this small tree between several tasks
+		CheckOptions parallel = CheckOptions.parallel().withParallelThreshold(1);
+		assertTrue(parallel.runsInParallel(tree.nNodes()));
+		CheckResult result = arch.check(tree, compiled, parallel);
+		assertEquals(summary(sequential.errors()), summary(result.errors()));
+		assertEquals(actionInfos(sequential.errors()), actionInfos(result.errors()));
+		assertEquals(sequential.nErrors(), result.nErrors());
+		assertEquals(sequential.nCompliantNodes(), result.nCompliantNodes());
+		// streamed errors come in discovery order, between the start and end calls
+		List<String> events = Collections.synchronizedList(new ArrayList<>());
+		List<ErrorMessagable> streamed = Collections.synchronizedList(new ArrayList<>());
+		result = arch.check(tree, compiled, parallel.streamingTo(new ErrorListListener() {
+			@Override
+			public void onReceiveMsg(ErrorMessagable msg) {
+				events.add("error");
+				streamed.add(msg);
+			}
+			@Override
+			public void onStartCheck() {
+				events.add("start");
+			}
+			@Override
+			public void onEndCheck(boolean valid) {
+				events.add("end " + valid);
+			}
+		}));
+		assertEquals(summary(sequential.errors()), summary(result.errors()));
+		assertEquals(sequential.nErrors() + 2, events.size());
+		assertEquals("start", events.get(0));
+		assertEquals("end false", events.get(events.size() - 1));
+		List<String> expected = summary(sequential.errors());
+		List<String> found = summary(streamed);
+		Collections.sort(expected);
+		Collections.sort(found);
+		assertEquals(expected, found);
+	}
+
+	@Test
+	void testNodeMatcher() {
+		Archetypes arch = new Archetypes();
+		CompiledArchetype compiled = arch.compile((ArchetypeRootSpec) importTree(TEST_ARCHETYPE_FILE).root());
+		Tree<? extends TreeNode> tree = importTree(VALID_TREE_FILE);
+		TreeNode c1 = node(tree, "c1");
+		TreeNode c2 = node(tree, "c2");
+		TreeNode s1 = node(tree, "s1");
+		CompiledArchetype.NodeMatcher anyNode = new CompiledArchetype.NodeMatcher(List.of(":"));
+		CompiledArchetype.NodeMatcher component = new CompiledArchetype.NodeMatcher(List.of("component:"));
+		CompiledArchetype.NodeMatcher c2Only = new CompiledArchetype.NodeMatcher(List.of("component:c2"));
+		CompiledArchetype.NodeMatcher idOnly = new CompiledArchetype.NodeMatcher(List.of(":c1"));
+		for (TreeNode node : tree.nodes())
+			assertTrue(anyNode.matches(node));
+		assertTrue(component.matches(c1));
+		assertFalse(component.matches(s1));
+		assertTrue(c2Only.matches(c2));
+		assertFalse(c2Only.matches(c1));
+		assertTrue(idOnly.matches(c1));
+		assertFalse(idOnly.matches(c2));
+		// child specs are found with the same references
+		assertEquals(List.of("partSpec"), specIds(compiled.childPlans(c1)));
+		assertEquals(List.of("gadgetSpec"), specIds(compiled.childPlans(c2)));
+		assertTrue(compiled.childPlans(s1).isEmpty());
+	}
+
+	private static List<String> specIds(List<CompiledArchetype.NodePlan> plans) {
+		List<String> result = new ArrayList<>();
+		for (CompiledArchetype.NodePlan plan : plans)
+			result.add(plan.spec().id());
+		return result;
+	}
+
+	@Test
+	void testAsynchronousDelivery() {
+		Archetypes arch = new Archetypes();
+		CompiledArchetype compiled = arch.compile((ArchetypeRootSpec) importTree(TEST_ARCHETYPE_FILE).root());
+		Tree<? extends TreeNode> tree = importTree(INVALID_TREE_FILE);
+		CheckResult sequential = arch.check(tree, compiled);
+		List<String> events = Collections.synchronizedList(new ArrayList<>());
+		ErrorListListener slowListener = new ErrorListListener() {
+			@Override
+			public void onReceiveMsg(ErrorMessagable msg) {
+				LockSupport.parkNanos(1_000_000L);
+				events.addAll(summary(List.of(msg)));
+			}
+			@Override
+			public void onStartCheck() {
+				events.add("start");
+			}
+			@Override
+			public void onEndCheck(boolean valid) {
+				events.add("end " + valid);
+			}
+		};
+		ErrorMessageManager.addListener(slowListener);
+		// with a one message buffer, the check threads keep waiting for the listener
+		ErrorMessageManager.setAsynchronous(1, ErrorMessageManager.OverflowPolicy.BLOCK);
+		try {
+			arch.check(tree, compiled, CheckOptions.parallel().withParallelThreshold(1)
+				.streamingTo(ErrorMessageManager.listener()));
+			assertTrue(ErrorMessageManager.awaitDelivery(10, TimeUnit.SECONDS));
+		} finally {
+			ErrorMessageManager.setSynchronous();
+			ErrorMessageManager.removeListener(slowListener);
+		}
+		// nothing is lost
+		assertEquals(sequential.nErrors() + 2, events.size());
+		assertEquals("start", events.get(0));
+		assertEquals("end false", events.get(events.size() - 1));
+		List<String> expected = summary(sequential.errors());
+		List<String> found = new ArrayList<>(events.subList(1, events.size() - 1));
+		Collections.sort(expected);
+		Collections.sort(found);
+		assertEquals(expected, found);
+	}
+
+	@Test
+	void testDeliveryModeSwitch() throws InterruptedException {
+		Archetypes arch = new Archetypes();
+		CompiledArchetype compiled = arch.compile((ArchetypeRootSpec) importTree(TEST_ARCHETYPE_FILE).root());
+		List<ErrorMessagable> msgs = arch.check(importTree(INVALID_TREE_FILE), compiled).errors();
+		List<ErrorMessagable> received = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch release = new CountDownLatch(1);
+		ErrorListListener listener = new ErrorListListener() {
+			@Override
+			public void onReceiveMsg(ErrorMessagable msg) {
+				received.add(msg);
+				// the first message holds the delivery thread
+				if (received.size() == 1)
+					try {
+						release.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+			}
+			@Override
+			public void onStartCheck() {
+			}
+			@Override
+			public void onEndCheck(boolean valid) {
+			}
+		};
+		ErrorMessageManager.addListener(listener);
+		ErrorMessageManager.setAsynchronous(10, ErrorMessageManager.OverflowPolicy.BLOCK);
+		try {
+			ErrorMessageManager.dispatch(msgs.get(0));
+			ErrorMessageManager.dispatch(msgs.get(1));
+			// switching back to synchronous delivery waits for the pending messages...
+			Thread switcher = new Thread(ErrorMessageManager::setSynchronous);
+			switcher.start();
+			awaitWaiting(switcher);
+			// ...and messages dispatched meanwhile are delivered after them
+			Thread dispatcher = new Thread(() -> ErrorMessageManager.dispatch(msgs.get(2)));
+			dispatcher.start();
+			awaitWaiting(dispatcher);
+			release.countDown();
+			switcher.join(10_000);
+			dispatcher.join(10_000);
+			assertEquals(msgs.subList(0, 3), received);
+		} finally {
+			release.countDown();
+			ErrorMessageManager.setSynchronous();
+			ErrorMessageManager.removeListener(listener);
+		}
+	}
+
+	@Test
+	void testRejectedDelivery() {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.shutdown();
+		List<String> events = new ArrayList<>();
+		ErrorListListener listener = new ErrorListListener() {
+			@Override
+			public void onReceiveMsg(ErrorMessagable msg) {
+				events.add("error");
+			}
+			@Override
+			public void onStartCheck() {
+				events.add("start");
+			}
+			@Override
+			public void onEndCheck(boolean valid) {
+				events.add("end " + valid);
+			}
+		};
+		ErrorMessageManager.addListener(listener);
+		ErrorMessageManager.setAsynchronous(1, ErrorMessageManager.OverflowPolicy.BLOCK, executor);
+		try {
+			ErrorMessageManager.startCheck();
+			ErrorMessageManager.endCheck();
+			// the executor rejects delivery: it happens on this thread, and nothing is left pending
+			assertEquals(List.of("start", "end true"), events);
+			assertTrue(ErrorMessageManager.awaitDelivery(1, TimeUnit.SECONDS));
+		} finally {
+			ErrorMessageManager.setSynchronous();
+			ErrorMessageManager.removeListener(listener);
+		}
+	}
+
+	// waits until a thread is blocked
+	private static void awaitWaiting(Thread thread) {
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while ((thread.getState() != Thread.State.WAITING) && (thread.getState() != Thread.State.TIMED_WAITING)
+				&& (System.nanoTime() < end))
+			LockSupport.parkNanos(1_000_000L);
+	}
+
+	@Test
+	void testConstraints() {
+		Archetypes arch = new Archetypes();
+		Tree<? extends TreeNode> archetype = importTree(CONSTRAINT_ARCHETYPE_FILE);
+		assertTrue(arch.isArchetype(archetype));
+		CompiledArchetype compiled = arch.compile((ArchetypeRootSpec) archetype.root());
+		CheckResult result = arch.check(importTree(INVALID_TREE_FILE), compiled);
+		assertEquals(List.of(
+			// max = Integer(1) is passed to the query constructor: only c1 has two children
+			"NODE_QUERY_UNSATISFIED c1 MaxChildrenQuery",
+			// the factory registered as a service stands for the missing NoChildQuery class
+			"NODE_QUERY_UNSATISFIED c3 TestConstraints$NoChildQuery",
+			// p2 has as many children as p1
+			"NODE_QUERY_UNSATISFIED p2 TestConstraints$DistinctChildCountQuery"),
+			summary(result.errors()));
+		// queries which are not sub-archetypes are no longer tracked for cycles
+		assertTrue(constraintPlan(compiled, "MaxChildrenQuery").plainQuery);
+		assertTrue(result.errors().get(0).actionInfo().endsWith("Keep at most 1 children."));
+		assertTrue(result.errors().get(1).actionInfo().endsWith("Remove 'g1'."));
+		// all parameter classes were found
+		assertTrue(compiled.unresolvedConstraints().isEmpty());
+	}
+
+	@Test
+	void testConstraintFactories() {
+		ConstraintFactory factory = ConstraintFactories
+			.forClassName("au.edu.anu.aot.archetype.TestConstraints$NoChildQuery");
+		assertTrue(factory instanceof TestConstraints.NoChildFactory);
+		assertNull(ConstraintFactories.forClassName(TestConstraints.MaxChildrenQuery.class.getName()));
+		assertNull(ConstraintFactories.forClassName(null));
+		// the factory rejects invalid parameters
+		assertThrows(IllegalArgumentException.class, () -> factory.newConstraint(Map.of()));
+	}
+
+	@Test
+	void testFaultyConstraints() {
+		Archetypes arch = new Archetypes();
+		CompiledArchetype compiled = arch
+			.compile((ArchetypeRootSpec) importTree(FAULTY_CONSTRAINT_ARCHETYPE_FILE).root());
+		// the constraint rejected by its factory is reported, not dropped
+		assertEquals(1, compiled.unresolvedConstraints().size());
+		// failing constraints are reported and do not abort the check
+		CheckResult result = arch.check(importTree(INVALID_TREE_FILE), compiled);
+		assertEquals(List.of(
+			"QUERY_PARAMETERS_INVALID",
+			"NODE_QUERY_UNSATISFIED p1 TestConstraints$FailingQuery",
+			"NODE_QUERY_UNSATISFIED p2 TestConstraints$FailingQuery",
+			"NODE_QUERY_UNSATISFIED g1 TestConstraints$FailingQuery"),
+			summary(result.errors()));
+		assertTrue(result.errors().get(0).actionInfo().contains("noChildQuery"));
+		assertTrue(result.errors().get(1).actionInfo().endsWith("broken"));
+		assertTrue(result.errors().get(3).actionInfo().endsWith("broken batch"));
+	}
+
+	@Test
+	void testBatchConstraint() {
+		Archetypes arch = new Archetypes();
+		CompiledArchetype compiled = arch.compile((ArchetypeRootSpec) importTree(CONSTRAINT_ARCHETYPE_FILE).root());
+		Tree<? extends TreeNode> tree = importTree(INVALID_TREE_FILE);
+		// all the items are checked in a single call, in tree order
+		CheckResult sequential = arch.check(tree, compiled);
+		assertEquals(List.of("p1", "p2"), ids(TestConstraints.DistinctChildCountFactory.lastBatch));
+		// parallel checks merge the items of all tasks before the call
+		TestConstraints.DistinctChildCountFactory.lastBatch = null;
+		CheckResult parallel = arch.check(tree, compiled, CheckOptions.parallel().withParallelThreshold(1));
+		assertEquals(List.of("p1", "p2"), ids(TestConstraints.DistinctChildCountFactory.lastBatch));
+		assertEquals(summary(sequential.errors()), summary(parallel.errors()));
+		// a single item can only be compared to itself
+		BatchConstraint batch = (BatchConstraint) ConstraintFactories
+			.forClassName("au.edu.anu.aot.archetype.TestConstraints$DistinctChildCountQuery").newConstraint(Map.of());
+		for (TreeNode node : tree.nodes())
+			assertNull(batch.check(node));
+	}
+
+	@Test
+	void testLazyDescriptions() {
+		Archetypes arch = new Archetypes();
+		List<ErrorMessagable> first = new ArrayList<>();
+		List<ErrorMessagable> second = new ArrayList<>();
+		for (File archetypeFile : List.of(TEST_ARCHETYPE_FILE, CONSTRAINT_ARCHETYPE_FILE)) {
+			Tree<? extends TreeNode> archetype = importTree(archetypeFile);
+			Tree<? extends TreeNode> tree = importTree(INVALID_TREE_FILE);
+			first.addAll(arch.check(tree, archetype, CheckOptions.sequential()).errors());
+			second.addAll(arch.check(tree, archetype, CheckOptions.sequential()).errors());
+		}
+		assertEquals(INVALID_TREE_ERRORS.size() + 3, first.size());
+		// every level gives the same text whatever the order it is asked in
+		for (int i = 0; i < first.size(); i++) {
+			ErrorMessagable a = first.get(i);
+			ErrorMessagable b = second.get(i);
+			String action = a.actionInfo();
+			String details = a.detailsInfo();
+			String debug = a.debugInfo();
+			assertEquals(debug, b.debugInfo());
+			assertEquals(details, b.detailsInfo());
+			assertEquals(action, b.actionInfo());
+			// and the same text when asked again
+			assertSame(action, a.actionInfo());
+			assertSame(details, a.detailsInfo());
+			assertSame(debug, a.debugInfo());
+		}
+	}
+
+	@Test
+	void testAggregation() {
+		Archetypes arch = new Archetypes();
+		CompiledArchetype compiled = arch.compile((ArchetypeRootSpec) importTree(CONSTRAINT_ARCHETYPE_FILE).root());
+		Tree<? extends TreeNode> tree = importTree(REPEATED_ERRORS_TREE_FILE);
+		CheckResult plain = arch.check(tree, compiled);
+		assertEquals(11, plain.nErrors());
+		CheckOptions aggregated = CheckOptions.sequential().withAggregation(2);
+		for (CheckOptions options : List.of(aggregated,
+				CheckOptions.parallel().withParallelThreshold(1).withAggregation(2))) {
+			List<ErrorMessagable> streamed = Collections.synchronizedList(new ArrayList<>());
+			CheckResult result = arch.check(tree, compiled, options.streamingTo(new ErrorListListener() {
+				@Override
+				public void onReceiveMsg(ErrorMessagable msg) {
+					streamed.add(msg);
+				}
+				@Override
+				public void onStartCheck() {
+				}
+				@Override
+				public void onEndCheck(boolean valid) {
+				}
+			}));
+			assertEquals(plain.nErrors(), result.nErrors());
+			// groups split between parallel tasks are merged, samples in tree order
+			assertEquals(List.of("NODE_QUERY_UNSATISFIED 4 [c1, c2]", "NODE_QUERY_UNSATISFIED 7 [p2, p3]"),
+				groups(result.errors()));
+			// every group is streamed once, when complete
+			assertEquals(result.errors(), streamed);
+		}
+		// missing children of different specs under the same parent are not grouped
+		CheckResult invalid = arch.check(importTree(INVALID_TREE_FILE), importTree(TEST_ARCHETYPE_FILE), aggregated);
+		assertEquals(INVALID_TREE_ERRORS.size(), invalid.errors().size());
+	}
+
+	@Test
+	void testPrecompiledArchetype() throws IOException {
+		Archetypes arch = new Archetypes();
+		Tree<? extends TreeNode> graph = importTree(ARCHETYPE_FILE);
+		CompiledArchetype compiled = arch.compile((ArchetypeRootSpec) graph.root());
+		long checksum = PrecompiledArchetypes.checksum(Files.readAllBytes(ARCHETYPE_FILE.toPath()));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PrecompiledArchetypes.write(compiled, checksum, out);
+		// the image gives the same plan, and the same check result
+		CompiledArchetype loaded = PrecompiledArchetypes.read(ByteBuffer.wrap(out.toByteArray()), checksum,
+			() -> (ArchetypeRootSpec) graph.root());
+		assertNotNull(loaded);
+		assertEquals(compiled.archetypeId(), loaded.archetypeId());
+		assertEquals(compiled.isExclusive(), loaded.isExclusive());
+		assertEquals(compiled.nNodeSpecs(), loaded.nNodeSpecs());
+		CheckResult result = arch.check(graph, loaded);
+		assertTrue(result.isValid());
+		assertEquals(arch.check(graph, compiled).nCompliantNodes(), result.nCompliantNodes());
+		// an image compiled from another source is ignored
+		assertNull(PrecompiledArchetypes.read(ByteBuffer.wrap(out.toByteArray()), checksum + 1,
+			() -> (ArchetypeRootSpec) graph.root()));
+		// so is an image of another format version
+		byte[] image = out.toByteArray();
+		ByteBuffer otherVersion = ByteBuffer.wrap(image.clone());
+		otherVersion.putInt(Integer.BYTES, PrecompiledArchetypes.FORMAT_VERSION + 1);
+		assertNull(PrecompiledArchetypes.read(otherVersion, checksum, () -> (ArchetypeRootSpec) graph.root()));
+		// and a corrupted one, wherever the damage is
+		for (int i = 2 * Integer.BYTES; i < image.length; i++) {
+			byte[] corrupted = image.clone();
+			corrupted[i] ^= 0x10;
+			assertNull(PrecompiledArchetypes.read(ByteBuffer.wrap(corrupted), checksum,
+				() -> (ArchetypeRootSpec) graph.root()));
+		}
+		// or a truncated one
+		assertNull(PrecompiledArchetypes.read(ByteBuffer.wrap(image, 0, image.length - 1), checksum,
+			() -> (ArchetypeRootSpec) graph.root()));
+		assertNull(PrecompiledArchetypes.read(ByteBuffer.wrap(image, 0, 6), checksum,
+			() -> (ArchetypeRootSpec) graph.root()));
+	}
+
+	@Test
+	void testArchetypeRegistry() {
+		Archetypes arch = new Archetypes();
+		Tree<? extends TreeNode> graph1 = importTree(ARCHETYPE_FILE);
+		Tree<? extends TreeNode> graph2 = importTree(ARCHETYPE_FILE);
+		ArchetypeRegistry registry = new ArchetypeRegistry(arch, 10000);
+		ArchetypeRegistry.Entry entry1 = registry.register(graph1);
+		assertTrue(entry1.isValid());
+		assertNotNull(entry1.compiled());
+		// the same content read again is found in the registry
+		ArchetypeRegistry.Entry entry2 = registry.register(graph2);
+		assertSame(entry1, entry2);
+		assertEquals(ArchetypeRegistry.contentHash(graph1), ArchetypeRegistry.contentHash(graph2));
+		assertEquals(1, registry.misses());
+		assertEquals(1, registry.hits());
+		assertEquals(1, registry.size());
+		// the last archetype is kept even if heavier than the registry
+		ArchetypeRegistry small = new ArchetypeRegistry(arch, 1);
+		small.register(graph1);
+		assertEquals(1, small.size());
+		assertEquals(0, small.evictions());
+	}
+
+	@Test
+	void testArchetypeRegistryEviction() {
+		Archetypes arch = new Archetypes();
+		Tree<? extends TreeNode> big = importTree(ARCHETYPE_FILE);
+		Tree<? extends TreeNode> small1 = importTree(TEST_ARCHETYPE_FILE);
+		Tree<? extends TreeNode> small2 = importTree(CONSTRAINT_ARCHETYPE_FILE);
+		assertTrue((small2.nNodes() <= small1.nNodes()) && (small1.nNodes() <= big.nNodes()));
+		// room for the big archetype and one of the small ones
+		ArchetypeRegistry registry = new ArchetypeRegistry(arch, big.nNodes() + small1.nNodes());
+		ArchetypeRegistry.Entry entry1 = registry.register(small1);
+		registry.register(small2);
+		assertEquals(small1.nNodes() + small2.nNodes(), registry.weight());
+		// small1 becomes the most recently used...
+		assertSame(entry1, registry.register(small1));
+		// ...so that small2 is evicted to make room for big
+		ArchetypeRegistry.Entry bigEntry = registry.register(big);
+		assertEquals(1, registry.evictions());
+		assertEquals(2, registry.size());
+		assertEquals(big.nNodes() + small1.nNodes(), registry.weight());
+		assertSame(entry1, registry.register(small1));
+		// big, although registered after small1, is now the least recently used
+		long misses = registry.misses();
+		registry.register(small2);
+		assertEquals(misses + 1, registry.misses());
+		assertEquals(2, registry.evictions());
+		assertEquals(small1.nNodes() + small2.nNodes(), registry.weight());
+		assertSame(entry1, registry.register(small1));
+		assertNotSame(bigEntry, registry.register(big));
+	}
+
+	@Test
+	void testSubtreeReuse() {
+		Archetypes arch = new Archetypes();
+		CompiledArchetype compiled = arch.compile((ArchetypeRootSpec) importTree(TEST_ARCHETYPE_FILE).root());
+		Tree<? extends TreeNode> tree = importTree(INVALID_TREE_FILE);
+		CheckOptions reuse = CheckOptions.sequential().withSubtreeReuse(true);
+		assertTrue(reuse.reusesSubtrees());
+		// the first check has nothing to reuse, the second one reuses every node
+		CheckResult first = arch.check(tree, compiled, reuse);
+		CheckResult second = arch.check(tree, compiled, reuse, first);
+		assertEquals(INVALID_TREE_ERRORS, summary(first.errors()));
+		assertEquals(INVALID_TREE_ERRORS, summary(second.errors()));
+		assertSame(error(first, "c2"), error(second, "c2"));
+		assertNodesOf(tree, second);
+		// moving the gadget under c2 changes the children of c2 and c3, but neither
+		// c1 nor sys
+		TreeNode g1 = node(tree, "g1");
+		g1.disconnectFrom(node(tree, "c3"));
+		g1.connectParent(node(tree, "c2"));
+		CheckResult third = arch.check(tree, compiled, reuse, second);
+		assertEquals(summary(arch.check(tree, compiled).errors()), summary(third.errors()));
+		assertNull(error(third, "c2"));
+		assertSame(error(second, "c1"), error(third, "c1"));
+		assertSame(error(second, "sys"), error(third, "sys"));
+		assertNodesOf(tree, third);
+		// moving it back, the check only needs to be told about g1
+		g1.disconnectFrom(node(tree, "c2"));
+		g1.connectParent(node(tree, "c3"));
+		CheckResult fourth = arch.check(tree, compiled, reuse, third, List.of(g1));
+		assertEquals(INVALID_TREE_ERRORS, summary(fourth.errors()));
+		assertSame(error(third, "sys"), error(fourth, "sys"));
+		assertNodesOf(tree, fourth);
+		// and about p2 when it is removed, which leaves c1 with a single part
+		TreeNode p2 = node(tree, "p2");
+		p2.disconnectFrom(node(tree, "c1"));
+		CheckResult fifth = arch.check(tree, compiled, reuse, fourth, List.of(p2));
+		assertEquals(summary(arch.check(tree, compiled).errors()), summary(fifth.errors()));
+		assertNull(error(fifth, "c1"));
+		assertSame(error(fourth, "sys"), error(fifth, "sys"));
+		// the same content in another tree is checked again, whatever the changes
+		Tree<? extends TreeNode> copy = importTree(INVALID_TREE_FILE);
+		CheckResult other = arch.check(copy, compiled, reuse, first, List.of());
+		assertEquals(INVALID_TREE_ERRORS, summary(other.errors()));
+		assertNotSame(error(first, "c1"), error(other, "c1"));
+		assertNodesOf(copy, other);
+	}
+
+	// the node constraint plan of the query class with the given simple name
+	private static ConstraintPlan constraintPlan(CompiledArchetype compiled, String simpleName) {
+		for (NodePlan plan : compiled.nodePlans())
+			for (ConstraintPlan constraint : plan.constraintPlans)
+				if (constraint.queryClassName.endsWith(simpleName))
+					return constraint;
+		return null;
+	}
+
+	// the first error about the node of the given id
+	private static ErrorMessagable error(CheckResult result, String id) {
+		for (ErrorMessagable error : result.errors()) {
+			Object target = ((SpecificationErrorMsg) error).args()[0];
+			if ((target instanceof TreeNode) && ((TreeNode) target).id().equals(id))
+				return error;
+		}
+		return null;
+	}
+
+	// checks that all the errors about nodes refer to the nodes of tree
+	private static void assertNodesOf(Tree<? extends TreeNode> tree, CheckResult result) {
+		for (ErrorMessagable error : result.errors()) {
+			Object target = ((SpecificationErrorMsg) error).args()[0];
+			if (target instanceof TreeNode)
+				assertSame(node(tree, ((TreeNode) target).id()), target);
+		}
+	}
+
+	@Test
+	void testSubArchetypeReuse() {
+		Archetypes arch = new Archetypes();
+		CompiledArchetype compiled = arch.compile((ArchetypeRootSpec) importTree(SUB_ARCHETYPE_FILE).root());
+		Tree<? extends TreeNode> tree = importTree(VALID_TREE_FILE);
+		AtomicInteger nRuns = TestConstraints.ParentIdSubArchetype.nRuns;
+		// without subtree reuse, sub-archetypes run at every check
+		int n = nRuns.get();
+		assertTrue(arch.check(tree, compiled).isValid());
+		assertTrue(arch.check(tree, compiled).isValid());
+		assertEquals(n + 2, nRuns.get());
+		// with subtree reuse, they do not run again on unchanged nodes
+		CheckOptions reuse = CheckOptions.sequential().withSubtreeReuse(true);
+		CheckResult first = arch.check(tree, compiled, reuse);
+		n = nRuns.get();
+		assertTrue(arch.check(tree, compiled, reuse, first).isValid());
+		assertEquals(n, nRuns.get());
+		// moving p1 under c2 only changes its ancestors, and fails the sub-archetype
+		TreeNode p1 = node(tree, "p1");
+		p1.disconnectFrom(node(tree, "c1"));
+		p1.connectParent(node(tree, "c2"));
+		CheckResult moved = arch.check(tree, compiled, reuse, first);
+		assertEquals(n + 1, nRuns.get());
+		assertEquals(List.of("NODE_QUERY_UNSATISFIED p1 ParentIdSubArchetype"), summary(moved.errors()));
+		assertSame(p1, ((SpecificationErrorMsg) moved.errors().get(0)).args()[0]);
+		// the errors of a failing sub-archetype are replayed
+		CheckResult again = arch.check(tree, compiled, reuse, moved);
+		assertEquals(n + 1, nRuns.get());
+		assertSame(moved.errors().get(0), again.errors().get(0));
+	}
+
+	@Test
+	void testSubArchetypeCycle() {
+		Archetypes arch = new Archetypes();
+		CompiledArchetype compiled = arch.compile((ArchetypeRootSpec) importTree(SUB_ARCHETYPE_FILE).root());
+		Tree<? extends TreeNode> tree = importTree(VALID_TREE_FILE);
+		TestConstraints.RecursiveSubArchetype.checking(arch, compiled, tree);
+		try {
+			// the check of sys checks sys again, which finds the cycle
+			CheckResult result = arch.check(tree, compiled);
+			assertEquals(List.of("NODE_QUERY_UNSATISFIED sys TestConstraints$RecursiveSubArchetype"),
+				summary(result.errors()));
+			String[] msgs = TextTranslations.getSUBARCHETYPE_CYCLE(
+				TestConstraints.RecursiveSubArchetype.class.getName(), node(tree, "sys").toShortString());
+			assertTrue(result.errors().get(0).actionInfo().endsWith(msgs[0]));
+			assertFalse(constraintPlan(compiled, "RecursiveSubArchetype").plainQuery);
+			// the cycle is found as well through another compilation of the archetype
+			CompiledArchetype again = arch.compile((ArchetypeRootSpec) importTree(SUB_ARCHETYPE_FILE).root());
+			TestConstraints.RecursiveSubArchetype.checking(arch, again, tree);
+			assertEquals(summary(result.errors()), summary(arch.check(tree, compiled).errors()));
+		} finally {
+			TestConstraints.RecursiveSubArchetype.checking(null, null, null);
+		}
+	}
+
+	@Test
+	void testIncrementalValidator() {
+		Archetypes arch = new Archetypes();
+		Tree<? extends TreeNode> graph = importTree(ARCHETYPE_FILE);
+		CompiledArchetype compiled = arch.compile((ArchetypeRootSpec) graph.root());
+		IncrementalValidator validator = new IncrementalValidator(arch, compiled, graph);
+		assertTrue(validator.isValid());
+		assertEquals(arch.check(graph, compiled).nCompliantNodes(), validator.result().nCompliantNodes());
+		// notifications on an unchanged tree leave it valid
+		for (TreeNode node : graph.nodes())
+			validator.nodeChanged(node);
+		assertTrue(validator.isValid());
+		assertEquals(graph.nNodes(), validator.result().nNodes());
+	}
+
+	@Test
+	void testIncrementalEdits() {
+		Archetypes arch = new Archetypes();
+		CompiledArchetype compiled = arch.compile((ArchetypeRootSpec) importTree(TEST_ARCHETYPE_FILE).root());
+		Tree<? extends TreeNode> tree = importTree(VALID_TREE_FILE);
+		IncrementalValidator validator = new IncrementalValidator(arch, compiled, tree);
+		assertTrue(validator.isValid());
+		TreeNode c1 = node(tree, "c1");
+		TreeNode c2 = node(tree, "c2");
+		TreeNode p1 = node(tree, "p1");
+		TreeNode g1 = node(tree, "g1");
+		// moving the gadget under c1 leaves c2 without gadget, and g1 without spec
+		g1.disconnectFrom(c2);
+		g1.connectParent(c1);
+		validator.nodeMoved(g1, c2);
+		assertFalse(validator.isValid());
+		assertEquals(List.of("NODE_RANGE_INCORRECT2 c2 gadget", "NODE_MISSING_SPECIFICATION"),
+			summary(validator.result().errors()));
+		assertEquals(summary(arch.check(tree, compiled).errors()), summary(validator.result().errors()));
+		// moving it back makes the tree valid again
+		g1.disconnectFrom(c1);
+		g1.connectParent(c2);
+		validator.nodeMoved(g1, c1);
+		assertTrue(validator.isValid());
+		// removing the part leaves c1 without part
+		p1.disconnectFrom(c1);
+		validator.nodeRemoved(p1, c1);
+		assertFalse(validator.isValid());
+		assertEquals(List.of("NODE_RANGE_INCORRECT2 c1 part"), summary(validator.result().errors()));
+		assertEquals(tree.nNodes() - 1, validator.result().nNodes());
+		p1.connectParent(c1);
+		validator.nodeAdded(p1);
+		assertTrue(validator.isValid());
+	}
+
+	private static TreeNode node(Tree<? extends TreeNode> tree, String id) {
+		for (TreeNode node : tree.nodes())
+			if (node.id().equals(id))
+				return node;
+		return null;
+	}
+
+	// the type and target of every error (plus the child class for child counts
+	// and the query class for constraints), to compare error lists
+	private static List<String> summary(Iterable<ErrorMessagable> errors) {
+		List<String> result = new ArrayList<>();
+		if (errors != null)
+			for (ErrorMessagable error : errors) {
+				SpecificationErrorMsg msg = (SpecificationErrorMsg) error;
+				String s = msg.error().name();
+				if (msg.args()[0] instanceof Element)
+					s += " " + ((Element) msg.args()[0]).id();
+				if ((msg.error() == SpecificationErrors.NODE_RANGE_INCORRECT2)
+					|| (msg.error() == SpecificationErrors.NODE_QUERY_UNSATISFIED))
+					s += " " + msg.args()[1];
+				result.add(s);
+			}
+		return result;
+	}
+
+	// the type, size and samples of error groups
+	private static List<String> groups(Iterable<ErrorMessagable> errors) {
+		List<String> result = new ArrayList<>();
+		for (ErrorMessagable error : errors) {
+			AggregatedErrorMsg group = (AggregatedErrorMsg) error;
+			List<String> samples = new ArrayList<>();
+			for (SpecificationErrorMsg sample : group.samples())
+				samples.add(((Element) sample.args()[0]).id());
+			result.add(group.error().name() + " " + group.count() + " " + samples);
+		}
+		return result;
+	}
+
+	private static List<String> ids(List<?> elements) {
+		List<String> result = new ArrayList<>();
+		for (Object element : elements)
+			result.add(((Element) element).id());
+		return result;
+	}
+
+	private static List<String> actionInfos(Iterable<ErrorMessagable> errors) {
+		List<String> result = new ArrayList<>();
+		for (ErrorMessagable error : errors)
+			result.add(error.actionInfo());
+		return result;
+	}
+
 	@SuppressWarnings("unused")
 	private void printTree(TreeNode parent,String indent) {
 		if (parent.getParent()!=null)
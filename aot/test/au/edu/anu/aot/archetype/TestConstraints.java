@@ -0,0 +1,304 @@
+/**************************************************************************
+ *  AOT - Aspect-Oriented Thinking                                        *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          *
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            *
+ *                                                                        *
+ *  AOT is a method to generate elaborate software code from a series of  *
+ *  independent domains of knowledge. It enables one to manage and        *
+ *  maintain software from explicit specifications that can be translated *
+ *  into any programming language.          							  *
+ **************************************************************************
+ *  This file is part of AOT (Aspect-Oriented Thinking).                  *
+ *                                                                        *
+ *  AOT is free software: you can redistribute it and/or modify           *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  AOT is distributed in the hope that it will be useful,                *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with UIT.  If not, see <https://www.gnu.org/licenses/gpl.html>. *
+ *                                                                        *
+ **************************************************************************/
+package au.edu.anu.aot.archetype;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import au.edu.anu.aot.constraints.BatchConstraint;
+import au.edu.anu.aot.constraints.Constraint;
+import au.edu.anu.aot.constraints.ConstraintFactory;
+import au.edu.anu.aot.errorMessaging.ErrorMessagable;
+import au.edu.anu.aot.errorMessaging.impl.SpecificationErrorMsg;
+import au.edu.anu.aot.errorMessaging.impl.SpecificationErrors;
+import au.edu.anu.qgraph.queries.Queryable;
+import fr.cnrs.iees.omugi.graph.Tree;
+import fr.cnrs.iees.omugi.graph.TreeNode;
+
+/**
+ * Constraints named in the {@code mustSatisfyQuery} specifications of
+ * TestConstraintArchetype.ugt, TestFaultyConstraintArchetype.ugt and
+ * TestSubArchetype.ugt. They must be public to be found by
+ * {@link CompiledArchetype} or by the service loader (cf.
+ * META-INF/services/au.edu.anu.aot.constraints.ConstraintFactory in the test
+ * folder).
+ */
+public final class TestConstraints {
+
+	private TestConstraints() {
+		super();
+	}
+
+	private static int nChildren(TreeNode node) {
+		int result = 0;
+		for (@SuppressWarnings("unused") TreeNode child : node.getChildren())
+			result++;
+		return result;
+	}
+
+	/**
+	 * A query with a typed parameter: a node must not have more than
+	 * {@code max} children.
+	 */
+	public static class MaxChildrenQuery implements Queryable {
+		private final int max;
+		private String actionMsg = null;
+		private String errorMsg = null;
+
+		public MaxChildrenQuery(Integer max) {
+			super();
+			this.max = max;
+		}
+
+		@Override
+		public Queryable submit(Object input) {
+			TreeNode node = (TreeNode) input;
+			int n = nChildren(node);
+			if (n > max) {
+				actionMsg = "Keep at most " + max + " children.";
+				errorMsg = "'" + node.id() + "' has " + n + " children.";
+			}
+			return this;
+		}
+
+		@Override
+		public Object result() {
+			return null;
+		}
+
+		@Override
+		public String errorMsg() {
+			return errorMsg;
+		}
+
+		@Override
+		public String actionMsg() {
+			return actionMsg;
+		}
+
+		@Override
+		public boolean satisfied() {
+			return errorMsg == null;
+		}
+	}
+
+	/**
+	 * A factory registered as a service: a node must have no child of class
+	 * {@code childClass}. There is no NoChildQuery class, so that this
+	 * constraint can only come from the factory.
+	 */
+	public static class NoChildFactory implements ConstraintFactory {
+
+		@Override
+		public String constraintClassName() {
+			return TestConstraints.class.getName() + "$NoChildQuery";
+		}
+
+		@Override
+		public Constraint newConstraint(Map<String, Object> parameters) {
+			Object childClass = parameters.get("childClass");
+			if (!(childClass instanceof String))
+				throw new IllegalArgumentException("NoChildQuery requires a childClass String parameter");
+			return item -> {
+				TreeNode node = (TreeNode) item;
+				for (TreeNode child : node.getChildren())
+					if (child.classId().equals(childClass)) {
+						String[] result = { "Remove '" + child.id() + "'.",
+							"'" + node.id() + "' has a " + childClass + " child." };
+						return result;
+					}
+				return null;
+			};
+		}
+	}
+
+	/**
+	 * A batch constraint registered as a service: nodes must not have the same
+	 * number of children as a node before them. The items of the last call to
+	 * {@code checkAll(...)} are kept in {@link #lastBatch}.
+	 */
+	public static class DistinctChildCountFactory implements ConstraintFactory {
+
+		static volatile List<?> lastBatch = null;
+
+		@Override
+		public String constraintClassName() {
+			return TestConstraints.class.getName() + "$DistinctChildCountQuery";
+		}
+
+		@Override
+		public Constraint newConstraint(Map<String, Object> parameters) {
+			return new BatchConstraint() {
+				@Override
+				public List<String[]> checkAll(List<?> items) {
+					lastBatch = items;
+					List<String[]> result = new ArrayList<>(items.size());
+					Map<Integer, TreeNode> firstByCount = new HashMap<>();
+					for (Object item : items) {
+						TreeNode node = (TreeNode) item;
+						TreeNode first = firstByCount.putIfAbsent(nChildren(node), node);
+						if (first == null)
+							result.add(null);
+						else {
+							String[] msgs = { "Change the children of '" + node.id() + "'.",
+								"'" + node.id() + "' has as many children as '" + first.id() + "'." };
+							result.add(msgs);
+						}
+					}
+					return result;
+				}
+			};
+		}
+	}
+
+	/**
+	 * A faulty factory registered as a service: its constraints throw an
+	 * exception on every item, in batches if the {@code batch} parameter is
+	 * {@code true}.
+	 */
+	public static class FailingFactory implements ConstraintFactory {
+
+		@Override
+		public String constraintClassName() {
+			return TestConstraints.class.getName() + "$FailingQuery";
+		}
+
+		@Override
+		public Constraint newConstraint(Map<String, Object> parameters) {
+			if (Boolean.TRUE.equals(parameters.get("batch")))
+				return new BatchConstraint() {
+					@Override
+					public List<String[]> checkAll(List<?> items) {
+						throw new IllegalStateException("broken batch");
+					}
+				};
+			return item -> {
+				throw new IllegalStateException("broken");
+			};
+		}
+	}
+
+	/**
+	 * A sub-archetype, i.e. a query returning a list of errors: a node must be
+	 * under the node with id {@code parentId}. Its runs are counted in
+	 * {@link #nRuns}.
+	 */
+	public static class ParentIdSubArchetype implements Queryable {
+		static final AtomicInteger nRuns = new AtomicInteger();
+		private final String parentId;
+		private final List<ErrorMessagable> errors = new ArrayList<>();
+
+		public ParentIdSubArchetype(String parentId) {
+			super();
+			this.parentId = parentId;
+		}
+
+		@Override
+		public Queryable submit(Object input) {
+			nRuns.incrementAndGet();
+			TreeNode node = (TreeNode) input;
+			if ((node.getParent() == null) || !node.getParent().id().equals(parentId))
+				errors.add(new SpecificationErrorMsg(SpecificationErrors.NODE_QUERY_UNSATISFIED,
+					"Move '" + node.id() + "' under '" + parentId + "'.",
+					"'" + node.id() + "' is not under '" + parentId + "'.", node,
+					ParentIdSubArchetype.class.getSimpleName(), null));
+			return this;
+		}
+
+		@Override
+		public Object result() {
+			return errors;
+		}
+
+		@Override
+		public String errorMsg() {
+			return null;
+		}
+
+		@Override
+		public String actionMsg() {
+			return null;
+		}
+
+		@Override
+		public boolean satisfied() {
+			return errors.isEmpty();
+		}
+	}
+
+	/**
+	 * A sub-archetype which checks the tree set by {@link #checking(Archetypes,
+	 * CompiledArchetype, Tree)} again, and returns the errors found. If this
+	 * tree contains the node it is run on, it ends up checking itself.
+	 */
+	public static class RecursiveSubArchetype implements Queryable {
+		private static volatile Archetypes archetypes = null;
+		private static volatile CompiledArchetype archetype = null;
+		private static volatile Tree<? extends TreeNode> tree = null;
+		private final List<ErrorMessagable> errors = new ArrayList<>();
+
+		static void checking(Archetypes archetypes, CompiledArchetype archetype, Tree<? extends TreeNode> tree) {
+			RecursiveSubArchetype.archetypes = archetypes;
+			RecursiveSubArchetype.archetype = archetype;
+			RecursiveSubArchetype.tree = tree;
+		}
+
+		@Override
+		public Queryable submit(Object input) {
+			if (tree != null)
+				errors.addAll(archetypes.check(tree, archetype).errors());
+			return this;
+		}
+
+		@Override
+		public Object result() {
+			return errors;
+		}
+
+		@Override
+		public String errorMsg() {
+			return null;
+		}
+
+		@Override
+		public String actionMsg() {
+			return null;
+		}
+
+		@Override
+		public boolean satisfied() {
+			return errors.isEmpty();
+		}
+	}
+
+}